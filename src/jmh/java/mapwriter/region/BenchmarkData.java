@@ -0,0 +1,131 @@
+package mapwriter.region;
+
+import java.util.Collections;
+import java.util.Random;
+
+/*
+Synthetic block colours and chunks shared by the benchmarks.
+
+The chunks are plain terrain (stone, dirt and grass) with lakes, tree tops,
+tall grass and glass, optionally below a thick nether style ceiling.
+Everything is generated from a fixed seed so runs are comparable.
+*/
+
+final class BenchmarkData {
+
+    static final int STONE = 1;
+    static final int GRASS = 2;
+    static final int DIRT = 3;
+    static final int BEDROCK = 7;
+    static final int WATER = 9;
+    static final int LEAVES = 18;
+    static final int GLASS = 20;
+    static final int TALL_GRASS = 31;
+    static final int NETHERRACK = 87;
+
+    // modded blocks with colours, so the colour tables have a realistic size
+    static final int EXTRA_BLOCK_START = 256;
+    static final int EXTRA_BLOCK_COUNT = 1500;
+
+    private BenchmarkData() {
+    }
+
+    static BlockColours createBlockColours(long seed) {
+        Random rnd = new Random(seed);
+        BlockColours bc = new BlockColours();
+        for (int blockID = 1; blockID < EXTRA_BLOCK_START + EXTRA_BLOCK_COUNT; blockID++) {
+            int metaCount = (blockID < EXTRA_BLOCK_START) ? 16 : 4;
+            for (int meta = 0; meta < metaCount; meta++) {
+                int alpha = 0xff;
+                BlockColours.BlockType type = BlockColours.BlockType.NORMAL;
+                switch (blockID) {
+                    case GRASS:
+                        type = BlockColours.BlockType.GRASS;
+                        break;
+                    case WATER:
+                        alpha = 0xb0;
+                        type = BlockColours.BlockType.WATER;
+                        break;
+                    case LEAVES:
+                        alpha = 0xe0;
+                        type = BlockColours.BlockType.LEAVES;
+                        break;
+                    case GLASS:
+                        alpha = 0x40;
+                        break;
+                    case TALL_GRASS:
+                        alpha = 0x80;
+                        type = BlockColours.BlockType.GRASS;
+                        break;
+                    default:
+                        break;
+                }
+                bc.setColour(blockID, meta, (alpha << 24) | rnd.nextInt(0x1000000));
+                if (type != BlockColours.BlockType.NORMAL) {
+                    bc.setBlockType(blockID, meta, type);
+                }
+            }
+        }
+        for (int biome = 0; biome < 256; biome++) {
+            bc.setBiomeGrassShading(biome, rnd.nextInt(0x1000000));
+            bc.setBiomeFoliageShading(biome, rnd.nextInt(0x1000000));
+            bc.setBiomeWaterShading(biome, rnd.nextInt(0x1000000));
+        }
+        return bc;
+    }
+
+    private static void setBlock(byte[][] lsb, byte[][] meta, int x, int y, int z, int blockID) {
+        int yi = y >> 4;
+        if (lsb[yi] == null) {
+            lsb[yi] = new byte[4096];
+            meta[yi] = new byte[2048];
+        }
+        lsb[yi][((y & 0xf) << 8) | (z << 4) | x] = (byte) blockID;
+    }
+
+    static MwChunk[] createChunks(int count, boolean ceiling, long seed) {
+        Random rnd = new Random(seed);
+        MwChunk[] chunks = new MwChunk[count];
+        for (int i = 0; i < count; i++) {
+            byte[][] lsb = new byte[16][];
+            byte[][] meta = new byte[16][];
+            byte[] biomes = new byte[256];
+            int baseHeight = ceiling ? 40 : (56 + rnd.nextInt(24));
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    biomes[(z << 4) | x] = (byte) rnd.nextInt(40);
+                    int height = baseHeight + rnd.nextInt(6);
+                    setBlock(lsb, meta, x, 0, z, BEDROCK);
+                    for (int y = 1; y <= height; y++) {
+                        setBlock(lsb, meta, x, y, z, (y > height - 3) ? ((y == height) ? GRASS : DIRT) : STONE);
+                    }
+                    if (!ceiling && (height < 62)) {
+                        for (int y = height + 1; y <= 62; y++) {
+                            setBlock(lsb, meta, x, y, z, WATER);
+                        }
+                    } else if (rnd.nextInt(12) == 0) {
+                        for (int y = height + 4; y <= height + 6; y++) {
+                            setBlock(lsb, meta, x, y, z, LEAVES);
+                        }
+                    } else if (rnd.nextInt(6) == 0) {
+                        setBlock(lsb, meta, x, height + 1, z, TALL_GRASS);
+                    } else if (rnd.nextInt(40) == 0) {
+                        setBlock(lsb, meta, x, height + 1, z, GLASS);
+                    }
+                    if (ceiling) {
+                        // a roof of netherrack 8 to 30 blocks thick below bedrock
+                        for (int y = 97 + rnd.nextInt(23); y < 127; y++) {
+                            setBlock(lsb, meta, x, y, z, NETHERRACK);
+                        }
+                        setBlock(lsb, meta, x, 127, z, BEDROCK);
+                    }
+                }
+            }
+            chunks[i] = new MwChunk(i, 0, ceiling ? -1 : 0,
+                    new BlockStorage.Vanilla(lsb, null, meta),
+                    new BiomeStorage.Vanilla(biomes),
+                    new byte[16][], Collections.emptyMap());
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,142 @@
+package mapwriter.region;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Colour and biome tint lookups of a stream of blocks, as done for every block
+of a rendered column.
+
+trove looks them up the way BlockColours did before the dense table, with a
+TLongIntHashMap of colours and a TLongObjectHashMap of block types. dense
+looks up the single packed entry of the block and its biome tint.
+
+./gradlew jmh -PjmhArgs="BlockColoursBenchmark"
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockColoursBenchmark {
+
+    private static final int LOOKUP_COUNT = 4096;
+
+    private BlockColours bc;
+
+    private final TLongIntMap troveColours = new TLongIntHashMap(1024, 0.5F, 0, 0);
+    private final TLongObjectMap<BlockColours.BlockType> troveBlockTypes = new TLongObjectHashMap<>(1024, 0.5F, 0);
+    private final int[] waterMultiplierArray = new int[256];
+    private final int[] grassMultiplierArray = new int[256];
+    private final int[] foliageMultiplierArray = new int[256];
+
+    private final long[] blocks = new long[LOOKUP_COUNT];
+    private final int[] biomes = new int[LOOKUP_COUNT];
+
+    private static long pack(int blockID, int meta) {
+        return (blockID & 0xFFFFFFFFL) | ((meta & 0xFFFFFFFFL) << 32);
+    }
+
+    @Setup
+    public void setup() {
+        this.bc = BenchmarkData.createBlockColours(1L);
+
+        // copy the colours, types and biome multipliers into the trove maps
+        for (int blockID = 1; blockID < BenchmarkData.EXTRA_BLOCK_START + BenchmarkData.EXTRA_BLOCK_COUNT; blockID++) {
+            for (int meta = 0; meta < 16; meta++) {
+                long blockAndMeta = pack(blockID, meta);
+                long entry = this.bc.getEntry(blockAndMeta);
+                if (entry != 0) {
+                    this.troveColours.put(blockAndMeta, BlockColours.entryColour(entry));
+                    BlockColours.BlockType type = BlockColours.entryBlockType(entry);
+                    if (type != BlockColours.BlockType.NORMAL) {
+                        this.troveBlockTypes.put(blockAndMeta, type);
+                    }
+                }
+            }
+        }
+        for (int biome = 0; biome < 256; biome++) {
+            this.grassMultiplierArray[biome] = this.bc.getBiomeColour(BlockColours.BlockType.GRASS, biome);
+            this.foliageMultiplierArray[biome] = this.bc.getBiomeColour(BlockColours.BlockType.LEAVES, biome);
+            this.waterMultiplierArray[biome] = this.bc.getBiomeColour(BlockColours.BlockType.WATER, biome);
+        }
+
+        // mostly terrain blocks, with some water, leaves, grass and modded blocks
+        Random rnd = new Random(3L);
+        int[] common = {
+                BenchmarkData.STONE, BenchmarkData.STONE, BenchmarkData.STONE, BenchmarkData.DIRT,
+                BenchmarkData.GRASS, BenchmarkData.WATER, BenchmarkData.WATER, BenchmarkData.LEAVES,
+                BenchmarkData.TALL_GRASS, BenchmarkData.GLASS, BenchmarkData.NETHERRACK, 0
+        };
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            int blockID = (rnd.nextInt(8) == 0) ?
+                    (BenchmarkData.EXTRA_BLOCK_START + rnd.nextInt(BenchmarkData.EXTRA_BLOCK_COUNT)) :
+                    common[rnd.nextInt(common.length)];
+            this.blocks[i] = pack(blockID, rnd.nextInt(4));
+            this.biomes[i] = rnd.nextInt(40);
+        }
+    }
+
+    private int getBiomeColourTrove(long blockAndMeta, int biome) {
+        BlockColours.BlockType type = this.troveBlockTypes.get(blockAndMeta);
+        if (type == null) {
+            type = BlockColours.BlockType.NORMAL;
+        }
+        switch (type) {
+            case GRASS:
+                return ((biome >= 0) && (biome < this.grassMultiplierArray.length)) ?
+                        this.grassMultiplierArray[biome] : 0xffffff;
+            case LEAVES:
+            case FOLIAGE:
+                return ((biome >= 0) && (biome < this.foliageMultiplierArray.length)) ?
+                        this.foliageMultiplierArray[biome] : 0xffffff;
+            case WATER:
+                return ((biome >= 0) && (biome < this.waterMultiplierArray.length)) ?
+                        this.waterMultiplierArray[biome] : 0xffffff;
+            default:
+                return 0xffffff;
+        }
+    }
+
+    @Benchmark
+    public int trove() {
+        int sum = 0;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            long blockAndMeta = this.blocks[i];
+            int colour = this.troveColours.get(blockAndMeta);
+            if (((colour >> 24) & 0xff) > 0) {
+                sum += colour ^ this.getBiomeColourTrove(blockAndMeta, this.biomes[i]);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int dense() {
+        int sum = 0;
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            long entry = this.bc.getEntry(this.blocks[i]);
+            int colour = BlockColours.entryColour(entry);
+            if (((colour >> 24) & 0xff) > 0) {
+                sum += colour ^ this.bc.getBiomeTint(this.bc.getBiomeTintOffset(this.biomes[i]), entry);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,190 @@
+package mapwriter.region;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Surface rendering of a batch of chunks with the floating point and the fixed
+point column blend, and with the fixed point blend reading blocks through a
+ChunkPalette as the region rebuild does.
+
+surfaceBaseline renders with a copy of the column blend from before the fixed
+point path was added, which converted every block to doubles and called
+Math.pow twice per pixel for the height shading.
+
+./gradlew jmh -PjmhArgs="ChunkRenderBenchmark"
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkRenderBenchmark {
+
+    private static final int CHUNK_COUNT = 64;
+
+    // render below a nether style ceiling, searching down from y 127
+    @Param({"false", "true"})
+    public boolean ceiling;
+
+    private BlockColours bc;
+    private MwChunk[] chunks;
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        this.bc = BenchmarkData.createBlockColours(1L);
+        this.chunks = BenchmarkData.createChunks(CHUNK_COUNT, this.ceiling, 2L);
+        this.pixels = new int[CHUNK_COUNT * MwChunk.SIZE * MwChunk.SIZE];
+    }
+
+    // the floating point height shading and column blend as they were before the
+    // fixed point path and the height shading table were added
+    private static double getHeightShadingBaseline(int height, int heightW, int heightN) {
+        int samples = 0;
+        int heightDiff = 0;
+
+        if ((heightW > 0) && (heightW < 255)) {
+            heightDiff += height - heightW;
+            samples++;
+        }
+
+        if ((heightN > 0) && (heightN < 255)) {
+            heightDiff += height - heightN;
+            samples++;
+        }
+
+        double heightDiffFactor = 0.0;
+        if (samples > 0) {
+            heightDiffFactor = (double) heightDiff / ((double) samples * 255.0);
+        }
+
+        return (heightDiffFactor >= 0.0) ?
+                Math.pow(heightDiffFactor, ChunkRender.brightenExponent) * ChunkRender.brightenAmplitude :
+                -Math.pow(-heightDiffFactor, ChunkRender.darkenExponent) * ChunkRender.darkenAmplitude;
+    }
+
+    private static int getColumnColourBaseline(BlockColours bc, IChunk chunk, int x, int y, int z, int heightW, int heightN) {
+        double a = 1.0;
+        double r = 0.0;
+        double g = 0.0;
+        double b = 0.0;
+        for (; y > 0; y--) {
+            long blockAndMeta = chunk.getBlockAndMetadataPacked(x, y, z);
+
+            int c1 = bc.getColour(blockAndMeta);
+            int alpha = (c1 >> 24) & 0xff;
+            if (alpha > 0) {
+                int biome = chunk.getBiome(x, z);
+                int c2 = bc.getBiomeColour(blockAndMeta, biome);
+
+                double c1A = (double) (alpha) / 255.0;
+                double c1R = (double) ((c1 >> 16) & 0xff) / 255.0;
+                double c1G = (double) ((c1 >> 8) & 0xff) / 255.0;
+                double c1B = (double) ((c1) & 0xff) / 255.0;
+
+                double c2R = (double) ((c2 >> 16) & 0xff) / 255.0;
+                double c2G = (double) ((c2 >> 8) & 0xff) / 255.0;
+                double c2B = (double) ((c2) & 0xff) / 255.0;
+
+                r = r + (a * c1A * c1R * c2R);
+                g = g + (a * c1A * c1G * c2G);
+                b = b + (a * c1A * c1B * c2B);
+                a = a * (1.0 - c1A);
+            }
+            if (alpha == 0xff) {
+                break;
+            }
+        }
+
+        double heightShading = getHeightShadingBaseline(y, heightW, heightN);
+        int lightValue = chunk.getLightValue(x, y + 1, z);
+        double lightShading = (double) lightValue / 15.0;
+        double shading = (heightShading + 1.0) * lightShading;
+
+        r = Math.min(Math.max(0.0, r * shading), 1.0);
+        g = Math.min(Math.max(0.0, g * shading), 1.0);
+        b = Math.min(Math.max(0.0, b * shading), 1.0);
+
+        return ((y & 0xff) << 24) |
+                ((((int) (r * 255.0)) & 0xff) << 16) |
+                ((((int) (g * 255.0)) & 0xff) << 8) |
+                ((((int) (b * 255.0)) & 0xff));
+    }
+
+    // same column search as ChunkRender.renderSurface, so only the blend differs
+    private static void renderSurfaceBaseline(BlockColours bc, IChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
+        for (int z = 0; z < MwChunk.SIZE; z++) {
+            for (int x = 0; x < MwChunk.SIZE; x++) {
+                int y;
+                if (dimensionHasCeiling) {
+                    for (y = 127; y >= 0; y--) {
+                        int alpha = (bc.getColour(chunk.getBlockAndMetadataPacked(x, y, z)) >> 24) & 0xff;
+                        if (alpha != 0xff) {
+                            break;
+                        }
+                    }
+                } else {
+                    y = chunk.getHeight(x, z);
+                }
+
+                int pixelOffset = offset + (z * scanSize) + x;
+                pixels[pixelOffset] = getColumnColourBaseline(
+                        bc, chunk, x, y, z,
+                        ChunkRender.getPixelHeightW(pixels, pixelOffset, scanSize),
+                        ChunkRender.getPixelHeightN(pixels, pixelOffset, scanSize)
+                );
+            }
+        }
+    }
+
+    private int[] render(boolean fixedPoint, boolean palette) {
+        ChunkRender.useFixedPointColumnColour = fixedPoint;
+        int scanSize = CHUNK_COUNT * MwChunk.SIZE;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            MwChunk chunk = this.chunks[i];
+            if (palette) {
+                ChunkRender.renderSurface(this.bc, chunk, this.pixels, i * MwChunk.SIZE, scanSize, this.ceiling);
+            } else {
+                ChunkRender.renderSurface(this.bc, (IChunk) chunk, this.pixels, i * MwChunk.SIZE, scanSize, this.ceiling);
+            }
+        }
+        return this.pixels;
+    }
+
+    @Benchmark
+    public int[] surfaceBaseline() {
+        int scanSize = CHUNK_COUNT * MwChunk.SIZE;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            renderSurfaceBaseline(this.bc, this.chunks[i], this.pixels, i * MwChunk.SIZE, scanSize, this.ceiling);
+        }
+        return this.pixels;
+    }
+
+    @Benchmark
+    public int[] surfaceDouble() {
+        return this.render(false, false);
+    }
+
+    @Benchmark
+    public int[] surfaceFixed() {
+        return this.render(true, false);
+    }
+
+    @Benchmark
+    public int[] surfacePalette() {
+        return this.render(true, true);
+    }
+}
@@ -3,6 +3,7 @@ package mapwriter;
 import mapwriter.tasks.Task;
 
 import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -12,25 +13,37 @@ import java.util.concurrent.TimeUnit;
 
 /*
 This class handles executing and managing 'tasks'.
-A single background thread runs tasks in the sequence they are added (via addTask()).
+A pool of background worker threads runs tasks added via addTask().
 A linked list FIFO queue of every unfinished task is processed every time the processTaskQueue method is called.
 processTaskQueue checks the task at the front of the queue to see if the background thread has processed it.
 If it the task is complete processTaskQueue calls the onComplete() method of the task and removes it from the queue.
 If it is not complete the task is added to the front of the queue again.
-In this way the tasks are always processed sequentially, in the order they were added to the queue.
+In this way the onComplete() methods are always called sequentially, in the order the tasks were added to the queue.
 
 Tasks are extensions of the base Task class.
 There are two abstract methods which must be overwritten by the extending class.
   void run()
-    Is executed in the background thread when the executor reaches this task.
+    Is executed in a background thread when the executor reaches this task.
   void onComplete()
     Is called by processTaskQueue() when the task is done (after the run method is complete).
 	This method runs in the main thread so is a good place to copy the results of the run() method.
-
-The run() method of a task added to the queue is guaranteed to be run before the run() method of the next task
-added. Likewise the onComplete() method of the first task is guaranteed to be run before the onComplete() of the second
-task. However the run() method of any class added after a Task may be executed before the onComplete() method of
-the earlier Task is called.
+The optional onProgress() method is called by processTaskQueue() in the main thread while the task
+at the front of the queue is still running, so long running tasks can report their progress.
+
+Work is partitioned between the worker threads by region key (see Task.getRegionKey()).
+Every task with a given region key always runs on the same worker thread, so different regions
+can be rendered and saved in parallel while tasks that touch the same region stay ordered.
+Tasks that return a null region key (e.g. rebuilding or closing all regions) may touch any
+region. They act as a barrier: they only run once every task added before them has finished,
+and no task added after them starts until they have finished.
+Tasks that only read the pixels of many regions (e.g. loading a map view) rely on the region
+locks instead, and share a key of their own that is not the key of any region.
+
+For tasks with the same region key, or where either task has a null region key, the run() method
+of a task added to the queue is guaranteed to be run before the run() method of the next task
+added. The onComplete() method of the first task is always guaranteed to be run before the
+onComplete() of the second task. However the run() method of any class added after a Task may be
+executed before the onComplete() method of the earlier Task is called.
 
 e.g. addTask(Task1)
      addTask(Task2)
@@ -43,23 +56,90 @@ may run in the order:
 	Task3.run()
 	  Task2.onComplete()
 	  Task3.onComplete()
+
+If Task1 and Task2 have different region keys Task2.run() may also run before or at the same
+time as Task1.run().
 */
 
 public class BackgroundExecutor {
 
-    private final ExecutorService executor;
+    private final ExecutorService[] workers;
     private final LinkedList<Task> taskQueue;
     public boolean closed = false;
 
     public BackgroundExecutor() {
-        this.executor = Executors.newSingleThreadExecutor();
+        this(0);
+    }
+
+    // threadCount <= 0 picks a thread count based on the number of available processors
+    public BackgroundExecutor(int threadCount) {
+        if (threadCount <= 0) {
+            threadCount = getDefaultThreadCount();
+        }
+        this.workers = new ExecutorService[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            this.workers[i] = Executors.newSingleThreadExecutor();
+        }
         this.taskQueue = new LinkedList<>();
     }
 
+    // leave at least one core free for the client thread
+    public static int getDefaultThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 8));
+    }
+
+    public int getThreadCount() {
+        return this.workers.length;
+    }
+
+    private int getWorkerIndex(long regionKey) {
+        // mix the bits of the key so that neighbouring regions land on different workers
+        long h = regionKey * 0x9e3779b97f4a7c15L;
+        return (int) ((h >>> 32) % this.workers.length);
+    }
+
+    // run the task on the first worker once all other workers have reached the barrier,
+    // and hold the other workers at the barrier until the task has finished.
+    private Future<?> submitBarrierTask(Task task) {
+        if (this.workers.length == 1) {
+            return this.workers[0].submit(task);
+        }
+        CountDownLatch arrived = new CountDownLatch(this.workers.length - 1);
+        CountDownLatch finished = new CountDownLatch(1);
+        for (int i = 1; i < this.workers.length; i++) {
+            this.workers[i].submit(() -> {
+                arrived.countDown();
+                awaitLatch(finished);
+            });
+        }
+        return this.workers[0].submit(() -> {
+            try {
+                awaitLatch(arrived);
+                task.run();
+            } finally {
+                finished.countDown();
+            }
+        });
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // add a task to the queue
     public void addTask(Task task) {
         if (!this.closed) {
-            Future<?> future = this.executor.submit(task);
+            Long regionKey = task.getRegionKey();
+            Future<?> future;
+            if (regionKey != null) {
+                future = this.workers[this.getWorkerIndex(regionKey)].submit(task);
+            } else {
+                future = this.submitBarrierTask(task);
+            }
             task.setFuture(future);
             this.taskQueue.add(task);
         } else {
@@ -79,6 +159,7 @@ public class BackgroundExecutor {
                 task.onComplete();
                 processed = true;
             } else {
+                task.onProgress();
                 // put entry back on top of queue
                 this.taskQueue.push(task);
             }
@@ -106,11 +187,17 @@ public class BackgroundExecutor {
         boolean error = true;
         try {
             // stop accepting new tasks
-            this.executor.shutdown();
+            for (ExecutorService worker : this.workers) {
+                worker.shutdown();
+            }
             // process remaining tasks
             this.processRemainingTasks(50, 5);
             // should already be terminated, but just in case...
-            error = !this.executor.awaitTermination(10L, TimeUnit.SECONDS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            for (ExecutorService worker : this.workers) {
+                long remaining = Math.max(0L, deadline - System.nanoTime());
+                error = !worker.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+            }
             error = false;
         } catch (InterruptedException e) {
             MwUtil.log("error: IO task was interrupted during shutdown");
@@ -2,12 +2,27 @@ package mapwriter;
 
 import mapwriter.region.BlockColours;
 import mapwriter.region.BlockColours.BlockType;
+import cpw.mods.fml.common.Loader;
+import cpw.mods.fml.common.ModContainer;
 import net.minecraft.block.Block;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.texture.TextureMap;
+import net.minecraft.client.resources.ResourcePackRepository;
 import net.minecraft.util.IIcon;
 import net.minecraft.world.biome.BiomeGenBase;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
 import static mapwriter.region.BlockColours.metaCount;
 
 // Static class to generate BlockColours.
@@ -18,23 +33,24 @@ import static mapwriter.region.BlockColours.metaCount;
 
 public class BlockColourGen {
 	
-	private static int getIconMapColour(IIcon icon, Texture terrainTexture) {
+	// get the area of the terrain texture covered by an icon, packed as
+	// (x << 48) | (y << 32) | (w << 16) | h.
+	private static long getIconArea(IIcon icon, Texture terrainTexture) {
 		// flipped icons have the U and V coords reversed (minU > maxU, minV > maxV).
 		// thanks go to taelnia for fixing this. 
 		int iconX = Math.round(((float) terrainTexture.w) * Math.min(icon.getMinU(), icon.getMaxU()));
 		int iconY = Math.round(((float) terrainTexture.h) * Math.min(icon.getMinV(), icon.getMaxV()));
 		int iconWidth = Math.round(((float) terrainTexture.w) * Math.abs(icon.getMaxU() - icon.getMinU()));
 		int iconHeight = Math.round(((float) terrainTexture.h) * Math.abs(icon.getMaxV() - icon.getMinV()));
+		return ((iconX & 0xffffL) << 48) | ((iconY & 0xffffL) << 32) | ((iconWidth & 0xffffL) << 16) | (iconHeight & 0xffffL);
+	}
 
-		int[] pixels = new int[iconWidth * iconHeight];
-
-		//MwUtil.log("(%d, %d) %dx%d", iconX, iconY, iconWidth, iconHeight);
-
-		terrainTexture.getRGB(iconX, iconY, iconWidth, iconHeight, pixels, 0, iconWidth, icon);
-
-		// need to use custom averaging routine rather than scaling down to one pixel to
-		// stop transparent pixel colours being included in the average.
-		return Render.getAverageColourOfArray(pixels);
+	// need to use custom averaging routine rather than scaling down to one pixel to
+	// stop transparent pixel colours being included in the average.
+	private static int getAreaMapColour(long area, int[] terrainPixels, Texture terrainTexture) {
+		return Render.getAverageColourOfArea(terrainPixels, terrainTexture.w, terrainTexture.h,
+				(int) ((area >> 48) & 0xffff), (int) ((area >> 32) & 0xffff),
+				(int) ((area >> 16) & 0xffff), (int) (area & 0xffff));
 	}
 	
 	private static int adjustBlockColourFromType(BlockColours bc, long blockAndMeta, int blockColour) {
@@ -87,6 +103,33 @@ public class BlockColourGen {
 		}
 	}
 	
+	// get a key identifying everything genBlockColours depends on: the loaded mods
+	// and their versions, the resource packs and the block colour overrides.
+	// returns null if the key could not be computed.
+	public static String getCacheKey(File overridesFile) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (ModContainer mod : Loader.instance().getActiveModList()) {
+				digest.update(String.format("mod %s %s\n", mod.getModId(), mod.getVersion()).getBytes(StandardCharsets.UTF_8));
+			}
+			for (Object entry : Minecraft.getMinecraft().getResourcePackRepository().getRepositoryEntries()) {
+				String name = ((ResourcePackRepository.Entry) entry).getResourcePackName();
+				digest.update(String.format("pack %s\n", name).getBytes(StandardCharsets.UTF_8));
+			}
+			if (overridesFile.isFile()) {
+				digest.update(Files.readAllBytes(overridesFile.toPath()));
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(String.format("%02x", b & 0xff));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException | IOException e) {
+			MwUtil.log("could not compute block colour cache key: %s", e);
+			return null;
+		}
+	}
+	
 	public static void genBlockColours(BlockColours bc) {
 		
 		MwUtil.log("generating block map colours from textures");
@@ -106,14 +149,16 @@ public class BlockColourGen {
 			return;
 		}
 		Texture terrainTexture = new Texture(terrainTextureId);
+		// copy the texture pixels once so the icons can be averaged in parallel
+		int[] terrainPixels = terrainTexture.getPixels();
 		
-		double u1Last = 0;
-		double u2Last = 0;
-		double v1Last = 0;
-		double v2Last = 0;
-		int blockColourLast = 0;
+		// first find the icon of every block and meta value on this thread, as
+		// getIcon is mod code. each distinct icon area is only averaged once.
+		List<Long> blockAndMetas = new ArrayList<>();
+		List<Integer> blockAreaIndices = new ArrayList<>();
+		List<Long> areas = new ArrayList<>();
+		Map<Long, Integer> areaIndices = new HashMap<>();
 		int e_count = 0;
-		int b_count = 0;
 		int s_count = 0;
 
 		for (Object oblock : Block.blockRegistry) {
@@ -123,9 +168,11 @@ public class BlockColourGen {
 			for (int dv = 0; dv < 17; dv++) {
 
 				long blockAndMeta = (blockID & 0xFFFFFFFFL) | ((dv & 0xFFFFFFFFL) << 32);
-				int blockColour = 0;
+				// -2 for no block, -1 for no icon
+				int areaIndex = -2;
 
 				if (block != null) {
+					areaIndex = -1;
 
 					IIcon icon = null;
 					try {
@@ -137,33 +184,22 @@ public class BlockColourGen {
 					}
 					
 					if (icon != null) {
-						double u1 = icon.getMinU();
-						double u2 = icon.getMaxU();
-						double v1 = icon.getMinV();
-						double v2 = icon.getMaxV();
-						
-						if ((u1 == u1Last) && (u2 == u2Last) && (v1 == v1Last) && (v2 == v2Last)) {
-							blockColour = blockColourLast;
-							s_count++;
+						//request icon with meta 16, carpenterblocks uses this method to get the real texture
+						//this makes the carpenterblocks render as brown blocks on the map
+						if (Block.blockRegistry.getNameForObject(block).contains("CarpentersBlocks"))
+						{
+							icon = block.getIcon(1, 16);
+						}
+						long area = getIconArea(icon, terrainTexture);
+						Integer index = areaIndices.get(area);
+						if (index == null) {
+							index = areas.size();
+							areas.add(area);
+							areaIndices.put(area, index);
 						} else {
-							blockColour = getIconMapColour(icon, terrainTexture);
-							
-							//request icon with meta 16, carpenterblocks uses this method to get the real texture
-							//this makes the carpenterblocks render as brown blocks on the map
-							if (Block.blockRegistry.getNameForObject(block).contains("CarpentersBlocks"))
-							{
-								icon = block.getIcon(1, 16);	
-								blockColour = getIconMapColour(icon, terrainTexture);
-							}
-							u1Last = u1;
-							u2Last = u2;
-							v1Last = v1;
-							v2Last = v2;
-							blockColourLast = blockColour;
-							b_count++;
+							s_count++;
 						}
-						//if (dv == 0)
-						//	MwUtil.log("block %03x:%x colour = %08x", blockID, dv, blockColour);
+						areaIndex = index;
 					}
 					
 					// doesn't work as some leaves blocks aren't rendered using the biome
@@ -174,12 +210,31 @@ public class BlockColourGen {
 					//	}
 					//} catch (NullPointerException e) {
 					//}
-					
-					blockColour = adjustBlockColourFromType(bc, blockAndMeta, blockColour);
 				}
-				bc.setColour(blockAndMeta, blockColour);
+				blockAndMetas.add(blockAndMeta);
+				blockAreaIndices.add(areaIndex);
+			}
+		}
+
+		// average the icon areas in parallel
+		int[] areaColours = new int[areas.size()];
+		IntStream.range(0, areaColours.length).parallel().forEach(
+				i -> areaColours[i] = getAreaMapColour(areas.get(i), terrainPixels, terrainTexture));
+
+		// adjusting the colours calls getRenderColor, so is also done on this thread
+		for (int i = 0; i < blockAndMetas.size(); i++) {
+			long blockAndMeta = blockAndMetas.get(i);
+			int areaIndex = blockAreaIndices.get(i);
+			int blockColour = 0;
+			if (areaIndex != -2) {
+				if (areaIndex >= 0) {
+					blockColour = areaColours[areaIndex];
+				}
+				blockColour = adjustBlockColourFromType(bc, blockAndMeta, blockColour);
 			}
+			bc.setColour(blockAndMeta, blockColour);
 		}
+		int b_count = areaColours.length;
 		
 		MwUtil.log("processed %d block textures, %d skipped, %d exceptions", b_count, s_count, e_count);
 		
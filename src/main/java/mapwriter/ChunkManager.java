@@ -3,152 +3,319 @@ package mapwriter;
 import mapwriter.region.BiomeStorage;
 import mapwriter.region.BlockStorage;
 import mapwriter.region.MwChunk;
+import mapwriter.region.Region;
 import mapwriter.tasks.SaveChunkTask;
 import mapwriter.tasks.UpdateSurfaceChunksTask;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.world.ChunkPosition;
 import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ChunkManager {
     private static final int VISIBLE_FLAG = 0x01;
     private static final int VIEWED_FLAG = 0x02;
-    private final CircularHashMap<Chunk, Integer> chunkMap = new CircularHashMap<>();
+    // set if the chunk has been rendered, its content hash is then stored in the queue
+    private static final int RENDERED_FLAG = 0x04;
+    // set while a copy of the chunk is waiting to be rendered by an update task.
+    // the content hash stored in the queue is that of the copy, RENDERED_FLAG is
+    // only set once the task has rendered it (see onChunksRendered).
+    private static final int RENDER_PENDING_FLAG = 0x08;
+    // how many chunks may be checked for changes per chunk updated
+    private static final int CHECKS_PER_UPDATE = 4;
+    // chunks are checked for changes every 1 + (distance * FRAMES_PER_CHUNK_DIST)
+    // frames, where distance is the distance in chunks to the player or the centre
+    // of the map view, whichever is nearer.
+    private static final int FRAMES_PER_CHUNK_DIST = 4;
+    // chunks within this many chunks of the player or map view centre are checked
+    // straight away when the player or view moves into a new chunk
+    private static final int FOCUS_RADIUS = 2;
+    private final ChunkUpdateQueue chunkQueue = new ChunkUpdateQueue();
+    private final ChunkUpdateScheduler scheduler;
     public Mw mw;
     private boolean closed = false;
+    private long frame = 0;
+
+    // chunk coordinates of the player and the map view centre the last time
+    // chunks near them were rescheduled
+    private int playerChunkX = Integer.MIN_VALUE;
+    private int playerChunkZ = Integer.MIN_VALUE;
+    private int viewChunkX = Integer.MIN_VALUE;
+    private int viewChunkZ = Integer.MIN_VALUE;
+    private int newViewChunkX = 0;
+    private int newViewChunkZ = 0;
+    // frame the view centre was last set, the view centre is only used while it
+    // keeps being set every frame
+    private long viewFrame = -2;
 
     public ChunkManager(Mw mw) {
         this.mw = mw;
+        this.scheduler = new ChunkUpdateScheduler(mw);
     }
 
     public synchronized void close() {
         this.closed = true;
         this.saveChunks();
-        this.chunkMap.clear();
+        this.chunkQueue.clear();
     }
 
     // create MwChunk from Minecraft chunk.
     // only MwChunk's should be used in the background thread.
     // make this a full copy of chunk data to prevent possible race conditions <-- done
+    // the block arrays are taken from the SectionArrayPool, call MwChunk.release once
+    // the copy is no longer needed to return them.
     public static MwChunk copyToMwChunk(Chunk chunk) {
 
         BlockStorage blocks;
         BiomeStorage biomes;
+        // block light is neither rendered nor saved, so it is not copied
         byte[][] lightingArray = new byte[16][];
-        @SuppressWarnings("unchecked")
-        Map<ChunkPosition, TileEntity> tileEntityMap = new HashMap<ChunkPosition, TileEntity>(chunk.chunkTileEntityMap);
+        Map<ChunkPosition, TileEntity> tileEntityMap;
+        if (chunk.chunkTileEntityMap.isEmpty()) {
+            tileEntityMap = Collections.emptyMap();
+        } else {
+            //noinspection unchecked
+            tileEntityMap = new HashMap<ChunkPosition, TileEntity>(chunk.chunkTileEntityMap);
+        }
 
         blocks = BlockStorage.clone(chunk);
         biomes = BiomeStorage.clone(chunk);
-        ExtendedBlockStorage[] storageArrays = chunk.getBlockStorageArray();
-        if (storageArrays != null) {
-            for (ExtendedBlockStorage storage : storageArrays) {
-                if (storage != null) {
-                    int y = (storage.getYLocation() >> 4) & 0xf;
-                    lightingArray[y] = (storage.getBlocklightArray() != null) ? Arrays.copyOf(storage.getBlocklightArray().data, storage.getBlocklightArray().data.length) : null;
-                }
-            }
-        }
 
         return new MwChunk(chunk.xPosition, chunk.zPosition, chunk.worldObj.provider.dimensionId,
                            blocks, biomes, lightingArray, tileEntityMap);
     }
 
+    // hash of the blocks, biomes and tile entities of a chunk.
+    // tile entities that change the block rendered at their position (see
+    // MwChunk.getTileEntityOverride) are included with the block they render.
+    public static long getContentHash(Chunk chunk) {
+        long hash = BlockStorage.contentHash(chunk);
+        hash = (hash * 31) + BiomeStorage.contentHash(chunk);
+        hash = (hash * 31) + chunk.chunkTileEntityMap.size();
+        hash = (hash * 31) + getTileEntityHash(chunk);
+        return hash;
+    }
+
+    private static long getTileEntityHash(Chunk chunk) {
+        long hash = 0;
+        //noinspection unchecked
+        for (Map.Entry<ChunkPosition, TileEntity> entry :
+                ((Map<ChunkPosition, TileEntity>) chunk.chunkTileEntityMap).entrySet()) {
+            long override = MwChunk.getTileEntityOverride(entry.getValue());
+            if (override != (-1L << 32)) {
+                ChunkPosition pos = entry.getKey();
+                long position = ((((pos.chunkPosZ & 0xf) << 4) | (pos.chunkPosX & 0xf)) << 8) | (pos.chunkPosY & 0xff);
+                // summed so that the hash does not depend on the iteration order of the map
+                hash += ((position * 0x9e3779b97f4a7c15L) ^ override) * 0xc2b2ae3d27d4eb4fL;
+            }
+        }
+        return hash;
+    }
+
+    // forget the content hashes so that every visible chunk is rendered again.
+    // renders still pending are also forgotten, so they do not mark their chunk as
+    // rendered when they complete.
+    public synchronized void clearContentHashes() {
+        this.chunkQueue.forEach(slot ->
+                this.chunkQueue.setFlags(slot, this.chunkQueue.getFlags(slot) & ~(RENDERED_FLAG | RENDER_PENDING_FLAG)));
+    }
+
+    // called by UpdateSurfaceChunksTask on the main thread once it has run, with the
+    // chunks it was given. only the first renderedCount chunks were rendered, the
+    // rest are checked again as if they had not been rendered.
+    public synchronized void onChunksRendered(MwChunk[] chunkArray, int renderedCount) {
+        for (int i = 0; i < chunkArray.length; i++) {
+            MwChunk mwChunk = chunkArray[i];
+            if (mwChunk == null) {
+                continue;
+            }
+            int slot = this.chunkQueue.find(mwChunk.x, mwChunk.z);
+            if ((slot >= 0) && (this.chunkQueue.getChunk(slot).worldObj.provider.dimensionId == mwChunk.dimension)) {
+                int flags = this.chunkQueue.getFlags(slot);
+                if ((flags & RENDER_PENDING_FLAG) != 0) {
+                    flags &= ~RENDER_PENDING_FLAG;
+                    if (i < renderedCount) {
+                        flags |= RENDERED_FLAG;
+                    }
+                    this.chunkQueue.setFlags(slot, flags);
+                }
+            }
+        }
+    }
+
     public synchronized void addChunk(Chunk chunk) {
         if (!this.closed && (chunk != null)) {
-            this.chunkMap.put(chunk, 0);
+            this.chunkQueue.add(chunk, this.frame);
         }
     }
 
     public synchronized void removeChunk(Chunk chunk) {
         if (!this.closed && (chunk != null)) {
-            if (!this.chunkMap.containsKey(chunk)) return; //FIXME: Is this failsafe enough for unloading?
-            int flags = this.chunkMap.get(chunk);
-            if ((flags & VIEWED_FLAG) != 0) {
+            int flags = this.chunkQueue.remove(chunk);
+            if ((flags >= 0) && ((flags & VIEWED_FLAG) != 0)) {
                 this.addSaveChunkTask(chunk);
             }
-            this.chunkMap.remove(chunk);
         }
     }
 
     public synchronized void saveChunks() {
-        for (Map.Entry<Chunk, Integer> entry : this.chunkMap.entrySet()) {
-            int flags = entry.getValue();
-            if ((flags & VIEWED_FLAG) != 0) {
-                this.addSaveChunkTask(entry.getKey());
+        this.chunkQueue.forEach(slot -> {
+            if ((this.chunkQueue.getFlags(slot) & VIEWED_FLAG) != 0) {
+                this.addSaveChunkTask(this.chunkQueue.getChunk(slot));
             }
+        });
+    }
+
+    // set the centre of the open map view, called every frame the map is drawn.
+    // chunks near the view centre are checked for changes more often.
+    public synchronized void setViewCentre(double x, double z, int dimension) {
+        if (dimension == this.mw.playerDimension) {
+            this.newViewChunkX = ((int) Math.floor(x)) >> 4;
+            this.newViewChunkZ = ((int) Math.floor(z)) >> 4;
+            this.viewFrame = this.frame;
         }
     }
 
-    public void updateUndergroundChunks() {
-        int chunkArrayX = (this.mw.playerXInt >> 4) - 1;
-        int chunkArrayZ = (this.mw.playerZInt >> 4) - 1;
-        MwChunk[] chunkArray = new MwChunk[9]; //FIXME: useless method?
-        for (int z = 0; z < 3; z++) {
-            for (int x = 0; x < 3; x++) {
-                Chunk chunk = this.mw.mc.theWorld.getChunkFromChunkCoords(
-                        chunkArrayX + x,
-                        chunkArrayZ + z
-                );
-                if (!chunk.isEmpty()) {
-                    chunkArray[(z * 3) + x] = copyToMwChunk(chunk);
-                }
+    private boolean isViewCentreSet() {
+        return (this.frame - this.viewFrame) <= 1;
+    }
+
+    // frames until a chunk should next be checked for changes
+    private int getCheckInterval(Chunk chunk) {
+        int dist = Math.max(
+                Math.abs(chunk.xPosition - this.playerChunkX),
+                Math.abs(chunk.zPosition - this.playerChunkZ));
+        if (this.isViewCentreSet()) {
+            dist = Math.min(dist, Math.max(
+                    Math.abs(chunk.xPosition - this.viewChunkX),
+                    Math.abs(chunk.zPosition - this.viewChunkZ)));
+        }
+        return 1 + (dist * FRAMES_PER_CHUNK_DIST);
+    }
+
+    // reschedule the chunks around a chunk to be checked this frame
+    private void rescheduleChunksAround(int chunkX, int chunkZ) {
+        this.chunkQueue.forEachInRange(chunkX, chunkZ, FOCUS_RADIUS, slot -> {
+            if (this.chunkQueue.getDue(slot) > this.frame) {
+                this.chunkQueue.reschedule(slot, this.frame);
             }
+        });
+    }
+
+    // when the player or map view moves into a new chunk, move the chunks around
+    // it to the front of the queue.
+    private void updateFocus() {
+        int chunkX = this.mw.playerXInt >> 4;
+        int chunkZ = this.mw.playerZInt >> 4;
+        if ((chunkX != this.playerChunkX) || (chunkZ != this.playerChunkZ)) {
+            this.playerChunkX = chunkX;
+            this.playerChunkZ = chunkZ;
+            this.rescheduleChunksAround(chunkX, chunkZ);
+        }
+        if (this.isViewCentreSet() &&
+                ((this.newViewChunkX != this.viewChunkX) || (this.newViewChunkZ != this.viewChunkZ))) {
+            this.viewChunkX = this.newViewChunkX;
+            this.viewChunkZ = this.newViewChunkZ;
+            this.rescheduleChunksAround(this.viewChunkX, this.viewChunkZ);
         }
     }
 
-    public void updateSurfaceChunks() {
-        int chunksToUpdate = Math.min(this.chunkMap.size(), this.mw.chunksPerTick);
-        MwChunk[] chunkArray = new MwChunk[chunksToUpdate];
-        for (int i = 0; i < chunksToUpdate; i++) {
-            Map.Entry<Chunk, Integer> entry = this.chunkMap.getNextEntry();
-            if (entry != null) {
-                // if this chunk is within a certain distance to the player then
-                // add it to the viewed set
-                Chunk chunk = entry.getKey();
+    // update the visible and viewed flags of a chunk, and add a copy of the chunk to
+    // chunkList if it is visible and has changed since it was last rendered.
+    private void checkChunk(int slot, List<MwChunk> chunkList) {
+        // if this chunk is within a certain distance to the player then
+        // add it to the viewed set
+        Chunk chunk = this.chunkQueue.getChunk(slot);
 
-                int flags = entry.getValue();
-                if (MwUtil.distToChunkSq(this.mw.playerXInt, this.mw.playerZInt, chunk) <= this.mw.maxChunkSaveDistSq) {
-                    flags |= (VISIBLE_FLAG | VIEWED_FLAG);
-                } else {
-                    flags &= ~VISIBLE_FLAG;
-                }
-                entry.setValue(flags);
+        int flags = this.chunkQueue.getFlags(slot);
+        if (MwUtil.distToChunkSq(this.mw.playerXInt, this.mw.playerZInt, chunk) <= this.mw.maxChunkSaveDistSq) {
+            flags |= (VISIBLE_FLAG | VIEWED_FLAG);
+        } else {
+            flags &= ~VISIBLE_FLAG;
+        }
 
-                if ((flags & VISIBLE_FLAG) != 0) {
-                    chunkArray[i] = copyToMwChunk(chunk);
-                } else {
-                    chunkArray[i] = null;
-                }
+        // a chunk with a render pending is checked again after the render completes
+        if (((flags & VISIBLE_FLAG) != 0) && ((flags & RENDER_PENDING_FLAG) == 0)) {
+            long hash = getContentHash(chunk);
+            if (((flags & RENDERED_FLAG) == 0) || (this.chunkQueue.getHash(slot) != hash)) {
+                this.chunkQueue.setHash(slot, hash);
+                flags = (flags & ~RENDERED_FLAG) | RENDER_PENDING_FLAG;
+                chunkList.add(copyToMwChunk(chunk));
+            }
+        }
+        this.chunkQueue.setFlags(slot, flags);
+    }
+
+    // render up to the scheduler's budget of visible chunks that have changed since
+    // they were last rendered. chunks are checked in the order they are due, chunks
+    // near the player or map view being due more often than distant chunks.
+    // chunks that have not changed are skipped without using the budget, up to
+    // CHECKS_PER_UPDATE chunks are checked per chunk rendered.
+    public synchronized void updateSurfaceChunks() {
+        this.updateFocus();
+        int chunksToUpdate = this.scheduler.getChunkBudget();
+        int chunksToCheck = chunksToUpdate * CHECKS_PER_UPDATE;
+        List<MwChunk> chunkList = new ArrayList<>();
+
+        for (int i = 0; (i < chunksToCheck) && (chunkList.size() < chunksToUpdate); i++) {
+            int slot = this.chunkQueue.peek();
+            if ((slot < 0) || (this.chunkQueue.getDue(slot) > this.frame)) {
+                break;
             }
+            this.checkChunk(slot, chunkList);
+            this.chunkQueue.reschedule(slot, this.frame + this.getCheckInterval(this.chunkQueue.getChunk(slot)));
         }
 
-        this.mw.executor.addTask(new UpdateSurfaceChunksTask(this.mw, chunkArray));
+        this.addUpdateSurfaceChunksTasks(chunkList.toArray(new MwChunk[0]), true);
+    }
+
+    // split the chunks into one task per region so that the background
+    // executor can render chunks in different regions in parallel.
+    // if queuedChunks is true the chunks are copies made by checkChunk, which the
+    // tasks release once rendered and report back to onChunksRendered.
+    private void addUpdateSurfaceChunksTasks(MwChunk[] chunkArray, boolean queuedChunks) {
+        Map<Long, List<MwChunk>> regionChunkMap = new LinkedHashMap<>();
+        for (MwChunk chunk : chunkArray) {
+            if (chunk != null) {
+                Long key = Region.getKey(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
+                regionChunkMap.computeIfAbsent(key, k -> new ArrayList<>()).add(chunk);
+            }
+        }
+        for (List<MwChunk> regionChunks : regionChunkMap.values()) {
+            this.mw.executor.addTask(new UpdateSurfaceChunksTask(this.mw, regionChunks.toArray(new MwChunk[0]),
+                    queuedChunks ? this : null));
+        }
     }
 
     public void onTick() {
         if (!this.closed) {
-            if ((this.mw.tickCounter & 0xf) == 0) {
-                this.updateUndergroundChunks();
-            } else {
-                this.updateSurfaceChunks();
-            }
+            this.frame++;
+            this.scheduler.onFrame();
+            this.updateSurfaceChunks();
         }
     }
 
     public void forceChunks(MwChunk[] chunkArray) {
-        this.mw.executor.addTask(new UpdateSurfaceChunksTask(this.mw, chunkArray));
+        this.addUpdateSurfaceChunksTasks(chunkArray, false);
     }
 
     private void addSaveChunkTask(Chunk chunk) {
         if ((this.mw.multiplayer && this.mw.regionFileOutputEnabledMP) ||
                 (!this.mw.multiplayer && this.mw.regionFileOutputEnabledSP)) {
             if (!chunk.isEmpty()) {
-                this.mw.executor.addTask(new SaveChunkTask(copyToMwChunk(chunk), this.mw.regionManager));
+                // saves are queued per region and written in batches. a task only needs
+                // to be added for the first chunk queued in a region, it will also save
+                // any chunks queued in the region before it runs.
+                // the queue releases the copy once it has been saved.
+                MwChunk mwChunk = copyToMwChunk(chunk);
+                if (this.mw.regionManager.chunkSaveQueue.add(mwChunk)) {
+                    this.mw.executor.addTask(new SaveChunkTask(mwChunk, this.mw.regionManager));
+                }
             }
         }
     }
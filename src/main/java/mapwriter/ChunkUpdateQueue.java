@@ -0,0 +1,307 @@
+package mapwriter;
+
+import net.minecraft.world.chunk.Chunk;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/*
+Loaded chunks ordered by the frame they are next due to be checked for changes.
+
+Chunks are stored in an open addressing hash table with linear probing, keyed by
+their packed chunk coordinates, so they can be looked up by coordinate and the
+chunks in an area found without scanning the whole table. The per chunk state
+(flags, content hash, due frame) is stored inline in primitive arrays indexed by
+table slot, callers refer to a chunk by its slot.
+Slots stay valid until a chunk is added or removed, either of which may move
+entries to other slots.
+
+The slots are also kept in a binary min-heap on their due frame, with each slot
+recording its own position in the heap so that a chunk can be rescheduled or
+removed in O(log n).
+ChunkManager schedules chunks near the player or the map view to be checked
+sooner than distant chunks. As the due frames of distant chunks do not change
+while nearer chunks keep being rescheduled after them, a distant chunk eventually
+becomes the most overdue entry and is checked, so no chunk is starved.
+*/
+
+public class ChunkUpdateQueue {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // hash table, a slot is empty if its chunk is null
+    private long[] keys;
+    private Chunk[] chunks;
+    private byte[] flags;
+    private long[] hashes;
+    private long[] dues;
+    private int[] heapIndices;
+    private int mask;
+
+    // heap of slots ordered by due frame
+    private int[] heap;
+    private int size = 0;
+
+    public ChunkUpdateQueue() {
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.chunks = new Chunk[capacity];
+        this.flags = new byte[capacity];
+        this.hashes = new long[capacity];
+        this.dues = new long[capacity];
+        this.heapIndices = new int[capacity];
+        this.heap = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public static long getKey(int chunkX, int chunkZ) {
+        return (((long) chunkX) << 32) | (chunkZ & 0xffffffffL);
+    }
+
+    private int getHomeSlot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return ((int) (h ^ (h >>> 32))) & this.mask;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // returns the slot of the chunk at the chunk coordinates, or -1 if there is none
+    public int find(int chunkX, int chunkZ) {
+        long key = getKey(chunkX, chunkZ);
+        for (int slot = this.getHomeSlot(key); this.chunks[slot] != null; slot = (slot + 1) & this.mask) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // add a chunk due to be checked at the given frame, with all flags clear.
+    // a chunk already queued at the same coordinates is replaced.
+    // returns the slot of the chunk.
+    public int add(Chunk chunk, long due) {
+        if ((this.size + 1) > (this.keys.length >> 1)) {
+            this.resize(this.keys.length << 1);
+        }
+        int slot = this.find(chunk.xPosition, chunk.zPosition);
+        if (slot >= 0) {
+            this.chunks[slot] = chunk;
+            this.flags[slot] = 0;
+            this.reschedule(slot, due);
+        } else {
+            slot = this.insert(getKey(chunk.xPosition, chunk.zPosition), chunk);
+            this.flags[slot] = 0;
+            this.dues[slot] = due;
+            this.heap[this.size] = slot;
+            this.heapIndices[slot] = this.size;
+            this.size++;
+            this.siftUp(this.heapIndices[slot]);
+        }
+        return slot;
+    }
+
+    // store a chunk in the first free slot for its key, without touching the heap
+    private int insert(long key, Chunk chunk) {
+        int slot = this.getHomeSlot(key);
+        while (this.chunks[slot] != null) {
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = key;
+        this.chunks[slot] = chunk;
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        Chunk[] oldChunks = this.chunks;
+        byte[] oldFlags = this.flags;
+        long[] oldHashes = this.hashes;
+        long[] oldDues = this.dues;
+        int[] oldHeap = this.heap;
+        this.allocate(capacity);
+        // reinsert in heap order so the heap stays valid
+        for (int i = 0; i < this.size; i++) {
+            int oldSlot = oldHeap[i];
+            int slot = this.insert(oldKeys[oldSlot], oldChunks[oldSlot]);
+            this.flags[slot] = oldFlags[oldSlot];
+            this.hashes[slot] = oldHashes[oldSlot];
+            this.dues[slot] = oldDues[oldSlot];
+            this.heap[i] = slot;
+            this.heapIndices[slot] = i;
+        }
+    }
+
+    // remove a chunk if it is queued.
+    // returns the flags of the removed chunk, or -1 if it was not queued.
+    public int remove(Chunk chunk) {
+        int slot = this.find(chunk.xPosition, chunk.zPosition);
+        if ((slot < 0) || (this.chunks[slot] != chunk)) {
+            return -1;
+        }
+        int removedFlags = this.flags[slot];
+
+        // remove from the heap
+        int i = this.heapIndices[slot];
+        int last = this.heap[--this.size];
+        if (i < this.size) {
+            this.heap[i] = last;
+            this.heapIndices[last] = i;
+            this.siftDown(i);
+            this.siftUp(this.heapIndices[last]);
+        }
+
+        // remove from the table, shifting back any following entries that
+        // would no longer be found from their home slot
+        int j = slot;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.chunks[j] == null) {
+                break;
+            }
+            int home = this.getHomeSlot(this.keys[j]);
+            boolean inRange = (slot <= j) ? ((slot < home) && (home <= j)) : ((slot < home) || (home <= j));
+            if (!inRange) {
+                this.move(j, slot);
+                slot = j;
+            }
+        }
+        this.chunks[slot] = null;
+        return removedFlags;
+    }
+
+    private void move(int from, int to) {
+        this.keys[to] = this.keys[from];
+        this.chunks[to] = this.chunks[from];
+        this.flags[to] = this.flags[from];
+        this.hashes[to] = this.hashes[from];
+        this.dues[to] = this.dues[from];
+        this.heapIndices[to] = this.heapIndices[from];
+        this.heap[this.heapIndices[to]] = to;
+    }
+
+    public void clear() {
+        Arrays.fill(this.chunks, null);
+        this.size = 0;
+    }
+
+    public Chunk getChunk(int slot) {
+        return this.chunks[slot];
+    }
+
+    public int getFlags(int slot) {
+        return this.flags[slot];
+    }
+
+    public void setFlags(int slot, int flags) {
+        this.flags[slot] = (byte) flags;
+    }
+
+    public long getHash(int slot) {
+        return this.hashes[slot];
+    }
+
+    public void setHash(int slot, long hash) {
+        this.hashes[slot] = hash;
+    }
+
+    public long getDue(int slot) {
+        return this.dues[slot];
+    }
+
+    // the slot of the chunk that is due first, or -1 if the queue is empty
+    public int peek() {
+        return (this.size > 0) ? this.heap[0] : -1;
+    }
+
+    public void reschedule(int slot, long due) {
+        long oldDue = this.dues[slot];
+        this.dues[slot] = due;
+        if (due < oldDue) {
+            this.siftUp(this.heapIndices[slot]);
+        } else if (due > oldDue) {
+            this.siftDown(this.heapIndices[slot]);
+        }
+    }
+
+    // call action with the slot of every queued chunk.
+    // chunks must not be added or removed by the action.
+    public void forEach(IntConsumer action) {
+        for (int slot = 0; slot < this.chunks.length; slot++) {
+            if (this.chunks[slot] != null) {
+                action.accept(slot);
+            }
+        }
+    }
+
+    // call action with the slot of every queued chunk within radius chunks of the
+    // chunk coordinates (in both x and z).
+    // chunks must not be added or removed by the action.
+    public void forEachInRange(int chunkX, int chunkZ, int radius, IntConsumer action) {
+        long area = ((2L * radius) + 1) * ((2L * radius) + 1);
+        if (area < this.size) {
+            // probe for each chunk in the area
+            for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+                    int slot = this.find(x, z);
+                    if (slot >= 0) {
+                        action.accept(slot);
+                    }
+                }
+            }
+        } else {
+            // fewer chunks are loaded than the area contains, check each of them
+            for (int slot = 0; slot < this.chunks.length; slot++) {
+                if ((this.chunks[slot] != null) &&
+                        (Math.abs((int) (this.keys[slot] >> 32) - chunkX) <= radius) &&
+                        (Math.abs((int) this.keys[slot] - chunkZ) <= radius)) {
+                    action.accept(slot);
+                }
+            }
+        }
+    }
+
+    private void siftUp(int i) {
+        int slot = this.heap[i];
+        long due = this.dues[slot];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            int parentSlot = this.heap[parent];
+            if (this.dues[parentSlot] <= due) {
+                break;
+            }
+            this.heap[i] = parentSlot;
+            this.heapIndices[parentSlot] = i;
+            i = parent;
+        }
+        this.heap[i] = slot;
+        this.heapIndices[slot] = i;
+    }
+
+    private void siftDown(int i) {
+        int slot = this.heap[i];
+        long due = this.dues[slot];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= this.size) {
+                break;
+            }
+            if (((child + 1) < this.size) && (this.dues[this.heap[child + 1]] < this.dues[this.heap[child]])) {
+                child++;
+            }
+            int childSlot = this.heap[child];
+            if (due <= this.dues[childSlot]) {
+                break;
+            }
+            this.heap[i] = childSlot;
+            this.heapIndices[childSlot] = i;
+            i = child;
+        }
+        this.heap[i] = slot;
+        this.heapIndices[slot] = i;
+    }
+}
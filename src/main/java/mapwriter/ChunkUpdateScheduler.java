@@ -0,0 +1,60 @@
+package mapwriter;
+
+/*
+Decides how many chunks ChunkManager may update each frame.
+
+The budget is raised by one chunk per frame while the background executor has no
+tasks queued and frames are fast (smoothed frame time under TARGET_FRAME_NANOS),
+and halved whenever the executor falls behind (more than MAX_QUEUED_TASKS tasks
+queued) or a frame takes much longer than the frames before it.
+It stays between 1 and maxChunksPerTick.
+
+If adaptive scheduling is disabled the budget is fixed at chunksPerTick.
+*/
+
+public class ChunkUpdateScheduler {
+
+    // frames faster than 30 fps leave headroom for more chunk updates
+    private static final long TARGET_FRAME_NANOS = 1000000000L / 30;
+    // a frame taking this many times the smoothed frame time counts as dropped
+    private static final int DROPPED_FRAME_FACTOR = 2;
+    private static final int MAX_QUEUED_TASKS = 16;
+
+    private final Mw mw;
+    private long lastFrameTime = 0;
+    private long smoothedFrameNanos = 0;
+    private int budget = 1;
+
+    public ChunkUpdateScheduler(Mw mw) {
+        this.mw = mw;
+    }
+
+    // called once per frame, before any chunks are updated
+    public void onFrame() {
+        long now = System.nanoTime();
+        long frameNanos = (this.lastFrameTime != 0) ? (now - this.lastFrameTime) : 0;
+        this.lastFrameTime = now;
+        if (!this.mw.adaptiveChunksPerTick) {
+            this.budget = this.mw.chunksPerTick;
+            return;
+        }
+
+        boolean droppedFrame = (this.smoothedFrameNanos > 0) &&
+                (frameNanos > (this.smoothedFrameNanos * DROPPED_FRAME_FACTOR));
+        // exponential moving average over about 8 frames
+        this.smoothedFrameNanos += (frameNanos - this.smoothedFrameNanos) / 8;
+
+        int tasksRemaining = this.mw.executor.tasksRemaining();
+        if (droppedFrame || (tasksRemaining > MAX_QUEUED_TASKS)) {
+            this.budget = this.budget / 2;
+        } else if ((tasksRemaining == 0) && (this.smoothedFrameNanos < TARGET_FRAME_NANOS)) {
+            this.budget++;
+        }
+        this.budget = Math.max(1, Math.min(this.budget, this.mw.maxChunksPerTick));
+    }
+
+    // number of chunks that may be updated this frame
+    public int getChunkBudget() {
+        return this.budget;
+    }
+}
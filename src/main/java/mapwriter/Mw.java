@@ -15,8 +15,10 @@ import mapwriter.map.Trail;
 import mapwriter.map.UndergroundTexture;
 import mapwriter.overlay.OverlaySlime;
 import mapwriter.region.BlockColours;
+import mapwriter.region.ChunkRender;
 import mapwriter.region.RegionManager;
 import mapwriter.tasks.CloseRegionManagerTask;
+import mapwriter.tasks.RebuildRegionsTask;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.GuiGameOver;
 import net.minecraft.client.settings.KeyBinding;
@@ -38,10 +40,11 @@ region file png -> texture (512x512 GL texture)				| on region load (slow, disk
 texture (512x512 GL texture) -> region file png				| on region unload (slow, disk access)
 chunk (Chunk object) -> anvil save file						| on chunk unload, separate thread handled by minecraft
 
-background thread
+background threads
 ------------------
-performs all data transfers except Chunk->Anvil, which is handled by ThreadedFileIOBase in minecraft.
-regions created in main thread when necessary, but filled from the background thread.
+perform all data transfers except Chunk->Anvil, which is handled by ThreadedFileIOBase in minecraft.
+regions created in main thread when necessary, but filled from the background threads.
+work is split between the background threads by region, see BackgroundExecutor.
 
 initialization
 --------------
@@ -113,12 +116,18 @@ public class Mw {
     public int configTextureSize = 2048;
     public int maxDeathMarkers = 3;
     public int chunksPerTick = 5;
+    public boolean adaptiveChunksPerTick = true;
+    public int maxChunksPerTick = 50;
     public boolean portNumberInWorldNameEnabled = true;
     public String saveDirOverride = "";
     public boolean regionFileOutputEnabledSP = true;
     public boolean regionFileOutputEnabledMP = true;
     public int backgroundTextureMode = 0;
     public boolean newMarkerDialog = true;
+    public int backgroundThreads = 0;
+    public boolean mappedRegionFilesEnabled = false;
+    public int regionCacheMegabytes = 0;
+    public boolean fixedPointColumnColourEnabled = true;
     //public boolean lightingEnabled = false;
 
     // flags and counters
@@ -150,6 +159,7 @@ public class Mw {
     public final static String worldDirConfigName = "mapwriter.cfg";
     public final static String blockColourSaveFileName = "MapWriterBlockColours.txt";
     public final static String blockColourOverridesFileName = "MapWriterBlockColourOverrides.txt";
+    public final static String blockColourCacheFileName = "MapWriterBlockColourCache.bin";
 
     // instances of components
     public MapTexture mapTexture;
@@ -161,6 +171,8 @@ public class Mw {
     public RegionManager regionManager;
     public ChunkManager chunkManager;
     public Trail playerTrail;
+    // the running rebuild task, set while it reports progress
+    public RebuildRegionsTask rebuildRegionsTask = null;
 
     public static Mw instance;
 
@@ -222,6 +234,10 @@ public class Mw {
         this.mapPixelSnapEnabled = this.config.getOrSetBoolean(catOptions, "mapPixelSnapEnabled", this.mapPixelSnapEnabled);
         this.maxDeathMarkers = this.config.getOrSetInt(catOptions, "maxDeathMarkers", this.maxDeathMarkers, 0, 1000);
         this.chunksPerTick = this.config.getOrSetInt(catOptions, "chunksPerTick", this.chunksPerTick, 1, 500);
+        // if enabled chunksPerTick is ignored, and the number of chunks updated per
+        // frame is adjusted between 1 and maxChunksPerTick (see ChunkUpdateScheduler)
+        this.adaptiveChunksPerTick = this.config.getOrSetBoolean(catOptions, "adaptiveChunksPerTick", this.adaptiveChunksPerTick);
+        this.maxChunksPerTick = this.config.getOrSetInt(catOptions, "maxChunksPerTick", this.maxChunksPerTick, 1, 500);
         this.saveDirOverride = this.config.get(catOptions, "saveDirOverride", this.saveDirOverride).getString();
         this.portNumberInWorldNameEnabled = config.getOrSetBoolean(catOptions, "portNumberInWorldNameEnabled", this.portNumberInWorldNameEnabled);
         this.undergroundMode = this.config.getOrSetBoolean(catOptions, "undergroundMode", this.undergroundMode);
@@ -230,6 +246,13 @@ public class Mw {
         this.backgroundTextureMode = this.config.getOrSetInt(catOptions, "backgroundTextureMode", this.backgroundTextureMode, 0, 1);
         //this.lightingEnabled = this.config.getOrSetBoolean(catOptions, "lightingEnabled", this.lightingEnabled);
         this.newMarkerDialog = this.config.getOrSetBoolean(catOptions, "newMarkerDialog", this.newMarkerDialog);
+        // 0 = one thread per available processor, leaving one for the client
+        this.backgroundThreads = this.config.getOrSetInt(catOptions, "backgroundThreads", this.backgroundThreads, 0, 64);
+        this.mappedRegionFilesEnabled = this.config.getOrSetBoolean(catOptions, "mappedRegionFilesEnabled", this.mappedRegionFilesEnabled);
+        this.regionCacheMegabytes = this.config.getOrSetInt(catOptions, "regionCacheMegabytes", this.regionCacheMegabytes, 0, 65536);
+        RegionManager.regionCacheMegabytes = this.regionCacheMegabytes;
+        this.fixedPointColumnColourEnabled = this.config.getOrSetBoolean(catOptions, "fixedPointColumnColourEnabled", this.fixedPointColumnColourEnabled);
+        ChunkRender.useFixedPointColumnColour = this.fixedPointColumnColourEnabled;
 
         this.maxZoom = this.config.getOrSetInt(catOptions, "zoomOutLevels", this.maxZoom, 1, 256);
         this.minZoom = -this.config.getOrSetInt(catOptions, "zoomInLevels", -this.minZoom, 1, 256);
@@ -399,14 +422,26 @@ public class Mw {
             bc.loadFromFile(f);
             this.loadBlockColourOverrides(bc);
         } else {
-            // generate block colours from current texture pack
-            MwUtil.logInfo("generating block colours");
-            // block type overrides need to be loaded before the block colours are generated
+            // block type overrides need to be loaded before the block colours are generated.
+            // this also recreates the overrides file if it is missing, which the cache key
+            // depends on.
             this.loadBlockColourOverrides(bc);
-            BlockColourGen.genBlockColours(bc);
-            // load overrides again to override block and biome colours
-            this.loadBlockColourOverrides(bc);
-            this.saveBlockColours(bc);
+            File cacheFile = new File(this.configDir, blockColourCacheFileName);
+            String cacheKey = BlockColourGen.getCacheKey(new File(this.configDir, blockColourOverridesFileName));
+            if ((cacheKey != null) && bc.loadFromBinaryFile(cacheFile, cacheKey)) {
+                // colours generated by an earlier run with the same mods and resource packs
+                MwUtil.logInfo("loaded block colours from cache %s", cacheFile);
+            } else {
+                // generate block colours from current texture pack
+                MwUtil.logInfo("generating block colours");
+                BlockColourGen.genBlockColours(bc);
+                // load overrides again to override block and biome colours
+                this.loadBlockColourOverrides(bc);
+                this.saveBlockColours(bc);
+                if (cacheKey != null) {
+                    bc.saveToBinaryFile(cacheFile, cacheKey);
+                }
+            }
         }
         this.blockColours = bc;
     }
@@ -419,8 +454,9 @@ public class Mw {
         if (oldMapTexture != null) {
             oldMapTexture.close();
         }
-        this.executor = new BackgroundExecutor();
-        this.regionManager = new RegionManager(this.worldDir, this.imageDir, this.blockColours, this.minZoom, this.maxZoom);
+        this.executor = new BackgroundExecutor(this.backgroundThreads);
+        this.regionManager = new RegionManager(this.worldDir, this.imageDir, this.blockColours, this.minZoom, this.maxZoom,
+                this.mappedRegionFilesEnabled);
 
         UndergroundTexture oldTexture = this.undergroundMapTexture;
         this.undergroundMapTexture = new UndergroundTexture(this, this.textureSize);
@@ -508,14 +544,15 @@ public class Mw {
         this.playerTrail = new Trail(this, "player");
 
         // executor does not depend on anything
-        this.executor = new BackgroundExecutor();
+        this.executor = new BackgroundExecutor(this.backgroundThreads);
 
         // mapTexture depends on config being loaded
         this.mapTexture = new MapTexture(this.textureSize, this.linearTextureScalingEnabled);
         this.undergroundMapTexture = new UndergroundTexture(this, this.textureSize);
         this.reloadBlockColours();
         // region manager depends on config, mapTexture, and block colours
-        this.regionManager = new RegionManager(this.worldDir, this.imageDir, this.blockColours, this.minZoom, this.maxZoom);
+        this.regionManager = new RegionManager(this.worldDir, this.imageDir, this.blockColours, this.minZoom, this.maxZoom,
+                this.mappedRegionFilesEnabled);
         // overlay manager depends on mapTexture
         this.miniMap = new MiniMap(this);
         this.miniMap.view.setDimension(this.mc.thePlayer.dimension);
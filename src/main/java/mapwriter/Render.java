@@ -48,23 +48,33 @@ public class Render {
     }
 
     public static int getAverageColourOfArray(int[] pixels) {
+        return getAverageColourOfArea(pixels, pixels.length, 1, 0, 0, pixels.length, 1);
+    }
+
+    // get the average colour of a w x h area at (x, y) of an image, without
+    // copying the area out of the image.
+    // pixels of the area outside the image count as transparent.
+    public static int getAverageColourOfArea(int[] image, int imageW, int imageH, int x, int y, int w, int h) {
         int count = 0;
         double totalA = 0.0;
         double totalR = 0.0;
         double totalG = 0.0;
         double totalB = 0.0;
-        for (int pixel : pixels) {
-            double a = (pixel >> 24) & 0xff;
-            double r = (pixel >> 16) & 0xff;
-            double g = (pixel >> 8) & 0xff;
-            double b = (pixel) & 0xff;
+        for (int j = y; j < (y + h); j++) {
+            for (int i = x; i < (x + w); i++) {
+                int pixel = ((i >= 0) && (i < imageW) && (j >= 0) && (j < imageH)) ? image[(j * imageW) + i] : 0;
+                double a = (pixel >> 24) & 0xff;
+                double r = (pixel >> 16) & 0xff;
+                double g = (pixel >> 8) & 0xff;
+                double b = (pixel) & 0xff;
 
-            totalA += a;
-            totalR += r * a / 255.0;
-            totalG += g * a / 255.0;
-            totalB += b * a / 255.0;
+                totalA += a;
+                totalR += r * a / 255.0;
+                totalG += g * a / 255.0;
+                totalB += b * a / 255.0;
 
-            count++;
+                count++;
+            }
         }
 
         totalR = totalR * 255.0 / totalA;
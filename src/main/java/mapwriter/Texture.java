@@ -57,6 +57,10 @@ public class Texture {
         this.pixelBuf.put(pixel);
     }
 
+    public void pixelBufPut(int[] pixels, int offset, int length) {
+        this.pixelBuf.put(pixels, offset, length);
+    }
+
     public synchronized void fillRect(int x, int y, int w, int h, int colour) {
         int offset = (y * this.w) + x;
         for (int j = 0; j < h; j++) {
@@ -67,6 +71,14 @@ public class Texture {
         }
     }
 
+    // copy all of the pixel buffer to an array
+    public synchronized int[] getPixels() {
+        int[] pixels = new int[this.w * this.h];
+        this.pixelBuf.position(0);
+        this.pixelBuf.get(pixels, 0, Math.min(pixels.length, this.pixelBuf.limit()));
+        return pixels;
+    }
+
     // Copy a rectangular sub-region of dimensions 'w' x 'h' from the pixel buffer to the array 'pixels'.
     public synchronized void getRGB(int x, int y, int w, int h, int[] pixels, int offset, int scanSize, IIcon icon) {
         int bufOffset = (y * this.w) + x;
@@ -493,6 +493,22 @@ public class MwGui extends GuiScreen {
                 s, this.width / 2, this.height - 18, 0xffffff);
     }
 
+    // draw a progress bar above the status bar while regions are being rebuilt
+    public void drawRebuildProgress() {
+        RebuildRegionsTask task = this.mw.rebuildRegionsTask;
+        if ((task != null) && (task.getRegionCount() > 0)) {
+            int x1 = 10;
+            int x2 = this.width - 20;
+            int progressX = x1 + ((x2 - x1) * task.getRegionsDone() / task.getRegionCount());
+            drawRect(x1, this.height - 38, x2, this.height - 23, 0x80000000);
+            drawRect(x1, this.height - 38, progressX, this.height - 23, 0x8000a000);
+            this.drawCenteredString(this.fontRendererObj,
+                    I18n.format("mw.gui.mwgui.status.rebuild",
+                            task.getRegionsDone(), task.getRegionCount(), task.getChunksPerSecond()),
+                    this.width / 2, this.height - 35, 0xffffff);
+        }
+    }
+
     public void drawHelp() {
         drawRect(10, 20, this.width - 20, this.height - 30, 0x80000000);
         this.fontRendererObj.drawSplitString(
@@ -601,6 +617,7 @@ public class MwGui extends GuiScreen {
 
         // draw status message
         this.drawStatus(this.mouseBlockX, this.mouseBlockY, this.mouseBlockZ);
+        this.drawRebuildProgress();
 
         // draw labels
         this.helpLabel.draw(menuX, menuY, "[" + I18n.format("mw.gui.mwgui.help") + "]");
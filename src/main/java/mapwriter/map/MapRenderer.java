@@ -69,6 +69,9 @@ public class MapRenderer {
             Render.setCircularStencil(0, 0, this.mapMode.h / 2.0);
         }
 
+        // chunks near the centre of the view are checked for changes more often
+        this.mw.chunkManager.setViewCentre(this.mapView.getX(), this.mapView.getZ(), this.mapView.getDimension());
+
         if ((this.mapView.getUndergroundMode()) && (regionZoomLevel == 0)) {
             // draw the underground map
             this.mw.undergroundMapTexture.requestView(this.mapView);
@@ -11,11 +11,18 @@ import java.util.List;
 
 public class MapTexture extends Texture {
     private final List<Rect> textureUpdateQueue = new ArrayList<>();
+    // regions loaded into the texture. only accessed while holding its lock, so that
+    // chunk updates (from any background worker) can not copy the pixels of a region
+    // into the texture after loadRegion has replaced it with another.
+    // lock order: regionArray, then a region's surfacePixels, then this texture.
     private final Region[] regionArray;
     public int textureRegions;
     public int textureSize;
     private MapViewRequest loadedView;
     private MapViewRequest requestedView;
+    private final RegionPrefetcher prefetcher = new RegionPrefetcher();
+    // one row of opaque pixels, bulk copied to the pixel buffer
+    private final int[] rowPixels = new int[Region.SIZE];
 
     private static class Rect {
         final int x, y, w, h;
@@ -42,6 +49,7 @@ public class MapTexture extends Texture {
         if ((this.requestedView == null) || (!this.requestedView.equals(req))) {
             this.requestedView = req;
             executor.addTask(new MapUpdateViewTask(this, regionManager, req));
+            this.prefetcher.onViewRequested(req, executor, regionManager);
         }
     }
 
@@ -74,15 +82,13 @@ public class MapTexture extends Texture {
         // to the texture pixelBuf.
         int bufOffset = (y * this.w) + x;
         for (int i = 0; i < h; i++) {
-            this.setPixelBufPosition(bufOffset + (i * this.w));
             int rowOffset = offset + (i * scanSize);
             for (int j = 0; j < w; j++) {
                 int colour = pixels[rowOffset + j];
-                if (colour != 0) {
-                    colour |= 0xff000000;
-                }
-                this.pixelBufPut(colour);
+                this.rowPixels[j] = (colour != 0) ? (colour | 0xff000000) : 0;
             }
+            this.setPixelBufPosition(bufOffset + (i * this.w));
+            this.pixelBufPut(this.rowPixels, 0, w);
         }
     }
 
@@ -104,11 +110,14 @@ public class MapTexture extends Texture {
 
         //MwUtil.log("updateTextureFromRegion: region %s, %d %d %d %d -> %d %d %d %d", region, x, z, w, h, tx, ty, tw, th);
 
-        int[] pixels = region.getPixels();
-        if (pixels != null) {
-            this.setRGBOpaque(tx, ty, tw, th, pixels, region.getPixelOffset(x, z), Region.SIZE);
-        } else {
-            this.fillRect(tx, ty, tw, th, 0x00000000);
+        // hold the lock so the pixel buffer can not be recycled while copying it
+        synchronized (region.surfacePixels) {
+            int[] pixels = region.getPixels();
+            if (pixels != null) {
+                this.setRGBOpaque(tx, ty, tw, th, pixels, region.getPixelOffset(x, z), Region.SIZE);
+            } else {
+                this.fillRect(tx, ty, tw, th, 0x00000000);
+            }
         }
 
         this.addTextureUpdate(tx, ty, tw, th);
@@ -123,18 +132,26 @@ public class MapTexture extends Texture {
     public void loadRegion(RegionManager regionManager, int x, int z, int zoomLevel, int dimension) {
         //MwUtil.log("mapTexture.loadRegion %d %d %d %d", x, z, zoomLevel, dimension);
         int index = this.getRegionIndex(x, z, zoomLevel);
-        Region currentRegion = this.regionArray[index];
+        Region currentRegion;
+        synchronized (this.regionArray) {
+            currentRegion = this.regionArray[index];
+        }
         if ((currentRegion == null) || (!currentRegion.equals(x, z, zoomLevel, dimension))) {
+            // get the region before taking the lock, as getting it may evict and
+            // close (and so lock) other regions.
             Region newRegion = regionManager.getRegion(x, z, zoomLevel, dimension);
-            this.regionArray[index] = newRegion;
-            this.updateTextureFromRegion(
-                    newRegion, newRegion.x, newRegion.z, newRegion.size, newRegion.size
-            );
+            synchronized (this.regionArray) {
+                this.regionArray[index] = newRegion;
+                this.updateTextureFromRegion(
+                        newRegion, newRegion.x, newRegion.z, newRegion.size, newRegion.size
+                );
+            }
             //regionManager.logInfo("regionArray[%d] = %s", index, newRegion);
         }
     }
 
     public void loadRegions(RegionManager regionManager, MapViewRequest req) {
+        regionManager.setViewedArea(req.xMin, req.zMin, req.xMax, req.zMax, req.zoomLevel, req.dimension);
         int size = Region.SIZE << req.zoomLevel;
         for (int z = req.zMin; z <= req.zMax; z += size) {
             for (int x = req.xMin; x <= req.xMax; x += size) {
@@ -144,9 +161,11 @@ public class MapTexture extends Texture {
     }
 
     public void updateArea(int x, int z, int w, int h, int dimension) {
-        for (Region region : this.regionArray) {
-            if ((region != null) && (region.isAreaWithin(x, z, w, h, dimension))) {
-                this.updateTextureFromRegion(region, x, z, w, h);
+        synchronized (this.regionArray) {
+            for (Region region : this.regionArray) {
+                if ((region != null) && (region.isAreaWithin(x, z, w, h, dimension))) {
+                    this.updateTextureFromRegion(region, x, z, w, h);
+                }
             }
         }
     }
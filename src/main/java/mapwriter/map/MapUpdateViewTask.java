@@ -4,12 +4,19 @@ import mapwriter.region.RegionManager;
 import mapwriter.tasks.Task;
 
 public class MapUpdateViewTask extends Task {
+    // view updates only read region pixels (locking each region while copying it),
+    // so they do not need to stop the other workers. they all share this key to run
+    // one after another on the same worker, so the last view requested is the one
+    // left loaded in the texture.
+    // it is not the key of any region (see Region.getKey).
+    private static final Long VIEW_TASK_KEY = Long.MIN_VALUE;
+
     private final MapViewRequest req;
     private final RegionManager regionManager;
     private final MapTexture mapTexture;
 
-    // chunkmanager will need to keep a list of chunks to update.
-    // it should also keep a 2D chunkSum array so that only modified chunks are updated.
+    // chunkmanager keeps the list of chunks to update, along with a content hash
+    // of each chunk so that only modified chunks are updated.
     public MapUpdateViewTask(MapTexture mapTexture, RegionManager regionManager, MapViewRequest req) {
 
         this.mapTexture = mapTexture;
@@ -17,6 +24,11 @@ public class MapUpdateViewTask extends Task {
         this.req = req;
     }
 
+    @Override
+    public Long getRegionKey() {
+        return VIEW_TASK_KEY;
+    }
+
     @Override
     public void run() {
         // load regions for view
@@ -0,0 +1,39 @@
+package mapwriter.map;
+
+import mapwriter.region.Region;
+import mapwriter.region.RegionManager;
+import mapwriter.tasks.Task;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// loads the pixels of a region into the region manager ahead of it being displayed
+public class PrefetchRegionTask extends Task {
+    private final RegionManager regionManager;
+    private final int x, z, zoomLevel, dimension;
+    private final AtomicBoolean cancelled;
+
+    public PrefetchRegionTask(RegionManager regionManager, int x, int z, int zoomLevel, int dimension, AtomicBoolean cancelled) {
+        this.regionManager = regionManager;
+        this.x = x;
+        this.z = z;
+        this.zoomLevel = zoomLevel;
+        this.dimension = dimension;
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public Long getRegionKey() {
+        return Region.getKey(this.x, this.z, this.zoomLevel, this.dimension);
+    }
+
+    @Override
+    public void run() {
+        if (!this.cancelled.get()) {
+            this.regionManager.getRegion(this.x, this.z, this.zoomLevel, this.dimension).getPixels();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
@@ -0,0 +1,77 @@
+package mapwriter.map;
+
+import mapwriter.BackgroundExecutor;
+import mapwriter.region.Region;
+import mapwriter.region.RegionManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Loads the regions just outside the map view in the direction the view is panning,
+so that they are already loaded by the time they scroll into view.
+
+The pan direction and speed come from the change in position between successive
+view requests (so both keyboard panning and dragging with the mouse count), in
+units of regions at the zoom level of the view. The faster the view is moving the
+more rings of regions ahead of it are loaded, up to MAX_PREFETCH_RINGS.
+Each region is loaded by a separate task on the background worker that handles
+that region. When the view changes again any prefetch tasks that have not started
+yet are cancelled, as the regions they would load may no longer be needed.
+*/
+
+public class RegionPrefetcher {
+    public static final int MAX_PREFETCH_RINGS = 2;
+
+    private MapViewRequest lastRequest = null;
+    private AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    // called on the main thread after a new view has been requested
+    public void onViewRequested(MapViewRequest req, BackgroundExecutor executor, RegionManager regionManager) {
+        MapViewRequest prevRequest = this.lastRequest;
+        this.lastRequest = req;
+
+        // cancel the prefetch for the previous view
+        this.cancelled.set(true);
+        this.cancelled = new AtomicBoolean(false);
+
+        if ((prevRequest == null) || !prevRequest.mostlyEquals(req)) {
+            // first view, or the zoom level or dimension changed. no direction to go on.
+            return;
+        }
+
+        int size = Region.SIZE << req.zoomLevel;
+        int dx = (req.xMin - prevRequest.xMin) / size;
+        int dz = (req.zMin - prevRequest.zMin) / size;
+        if ((dx == 0) && (dz == 0)) {
+            return;
+        }
+        int rings = Math.min(MAX_PREFETCH_RINGS, Math.max(Math.abs(dx), Math.abs(dz)));
+
+        // the area covered by the view moved ahead by the given number of rings
+        int xMin = req.xMin + (Math.min(0, Integer.signum(dx)) * rings * size);
+        int xMax = req.xMax + (Math.max(0, Integer.signum(dx)) * rings * size);
+        int zMin = req.zMin + (Math.min(0, Integer.signum(dz)) * rings * size);
+        int zMax = req.zMax + (Math.max(0, Integer.signum(dz)) * rings * size);
+
+        List<int[]> regions = new ArrayList<>();
+        for (int z = zMin; z <= zMax; z += size) {
+            for (int x = xMin; x <= xMax; x += size) {
+                boolean inView = (x >= req.xMin) && (x <= req.xMax) && (z >= req.zMin) && (z <= req.zMax);
+                if (!inView) {
+                    regions.add(new int[]{x, z});
+                }
+            }
+        }
+        // load the regions closest to the view first
+        regions.sort(Comparator.comparingInt(r -> Math.max(
+                Math.max(req.xMin - r[0], r[0] - req.xMax),
+                Math.max(req.zMin - r[1], r[1] - req.zMax))));
+
+        for (int[] r : regions) {
+            executor.addTask(new PrefetchRegionTask(regionManager, r[0], r[1], req.zoomLevel, req.dimension, this.cancelled));
+        }
+    }
+}
@@ -37,6 +37,11 @@ public class UndergroundTexture extends Texture {
             return this.chunk.getTopFilledSegment() + 15;
         }
 
+        @Override
+        public int getHeight(int x, int z) {
+            return this.getMaxY();
+        }
+
         @Override
         public long getBlockAndMetadataPacked(int x, int y, int z) {
             Block block = this.chunk.getBlock(x, y, z);
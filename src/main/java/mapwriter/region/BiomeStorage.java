@@ -21,6 +21,12 @@ public interface BiomeStorage {
                : Vanilla.clone(chunk);
     }
 
+    static long contentHash(Chunk chunk) {
+        return EndlessIDsCompat.blocks()
+               ? Util.hash(0, ((ChunkBiomeHook) chunk).getBiomeShortArray())
+               : Util.hash(0, chunk.getBiomeArray());
+    }
+
     static BiomeStorage deserialize(NBTTagCompound compound) {
         return EndlessIDsCompat.blocks()
                ? EndlessIDs.deserialize(compound)
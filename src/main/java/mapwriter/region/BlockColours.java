@@ -1,19 +1,21 @@
 package mapwriter.region;
 
 import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.TLongIntMap;
-import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.TLongLongMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
-import lombok.val;
-import lombok.var;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.procedure.TLongLongProcedure;
 import mapwriter.forge.EndlessIDsCompat;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -34,7 +36,6 @@ public class BlockColours {
     public static int biomeCount() {
         return EndlessIDsCompat.biomes() ? EndlessIDsCompat.biomeCount() : 256;
     }
-    private final TLongIntMap bcArray = new TLongIntHashMap(1024, 0.5F, 0, 0);
     private final int[] waterMultiplierArray = new int[biomeCount()];
     private final int[] grassMultiplierArray = new int[biomeCount()];
     private final int[] foliageMultiplierArray = new int[biomeCount()];
@@ -48,20 +49,96 @@ public class BlockColours {
         OPAQUE
     }
 
-    private final TLongObjectMap<BlockType> blockTypeArray = new TLongObjectHashMap<>(1024, 0.5F, 0);
+    private static final BlockType[] blockTypes = BlockType.values();
+    private static final int BLOCK_TYPE_STRIDE = 8;
+
+    // biome colour multiplier for each biome and block type, indexed by
+    // (biome * BLOCK_TYPE_STRIDE) + block type ordinal, kept up to date by the
+    // setBiome*Shading methods so that getting the multiplier of a block is a
+    // single array read rather than a switch on its type.
+    // the extra last row is for biome ids out of range and is all 0xffffff.
+    private final int[] biomeTints = new int[(biomeCount() + 1) * BLOCK_TYPE_STRIDE];
+
+    // the colour and block type of every block are stored together in one long
+    // entry, the colour in the low 32 bits and the BlockType ordinal in the high
+    // 32 bits. an entry of 0 is a transparent NORMAL block.
+    //
+    // blocks with an id below denseBlockCount and metadata below denseMetaCount
+    // are looked up in the dense table, indexed by (blockId * denseMetaCount) + meta.
+    // any others (the higher EndlessIDs block ids and metadata) are kept in the
+    // sparse map, which only holds non zero entries.
+    private static final int MAX_DENSE_BLOCK_COUNT = 8192;
+    private static final int MAX_DENSE_META_COUNT = 16;
+    private final int denseBlockCount = Math.min(blockCount(), MAX_DENSE_BLOCK_COUNT);
+    private final int denseMetaCount = Math.min(metaCount(), MAX_DENSE_META_COUNT);
+    private final long[] denseEntries = new long[this.denseBlockCount * this.denseMetaCount];
+    private final TLongLongMap sparseEntries = new TLongLongHashMap(64, 0.5F, 0, 0);
 
     public BlockColours() {
         Arrays.fill(this.waterMultiplierArray, 0xffffff);
         Arrays.fill(this.grassMultiplierArray, 0xffffff);
         Arrays.fill(this.foliageMultiplierArray, 0xffffff);
+        Arrays.fill(this.biomeTints, 0xffffff);
+    }
+
+    // index of the block in the dense table, or -1 if it is stored in the sparse map
+    private int getDenseIndex(long blockAndMeta) {
+        int blockID = (int) blockAndMeta;
+        int meta = (int) (blockAndMeta >>> 32);
+        if ((blockID >= 0) && (blockID < this.denseBlockCount) && (meta >= 0) && (meta < this.denseMetaCount)) {
+            return (blockID * this.denseMetaCount) + meta;
+        }
+        return -1;
+    }
+
+    // get the colour and block type of a block with a single lookup.
+    // use entryColour and entryBlockType to extract them.
+    public long getEntry(long blockAndMeta) {
+        int index = this.getDenseIndex(blockAndMeta);
+        return (index >= 0) ? this.denseEntries[index] : this.sparseEntries.get(blockAndMeta);
+    }
+
+    private void setEntry(long blockAndMeta, long entry) {
+        int index = this.getDenseIndex(blockAndMeta);
+        if (index >= 0) {
+            this.denseEntries[index] = entry;
+        } else if (entry != 0) {
+            this.sparseEntries.put(blockAndMeta, entry);
+        } else {
+            this.sparseEntries.remove(blockAndMeta);
+        }
+    }
+
+    public static int entryColour(long entry) {
+        return (int) entry;
+    }
+
+    public static BlockType entryBlockType(long entry) {
+        return blockTypes[(int) (entry >>> 32)];
+    }
+
+    // call procedure with the packed block and metadata and the entry of every
+    // block with a non zero entry
+    private void forEachEntry(TLongLongProcedure procedure) {
+        for (int index = 0; index < this.denseEntries.length; index++) {
+            long entry = this.denseEntries[index];
+            if (entry != 0) {
+                long blockAndMeta = ((long) (index % this.denseMetaCount) << 32) | (index / this.denseMetaCount);
+                if (!procedure.execute(blockAndMeta, entry)) {
+                    return;
+                }
+            }
+        }
+        this.sparseEntries.forEachEntry(procedure);
     }
 
     public int getColour(long blockAndMeta) {
-        return bcArray.get(blockAndMeta);
+        return entryColour(this.getEntry(blockAndMeta));
     }
 
     public void setColour(long blockAndMeta, int colour) {
-        bcArray.put(blockAndMeta, colour);
+        long entry = this.getEntry(blockAndMeta);
+        this.setEntry(blockAndMeta, (entry & 0xFFFFFFFF00000000L) | (colour & 0xFFFFFFFFL));
     }
 
     public int getColour(int blockID, int meta) {
@@ -88,11 +165,27 @@ public class BlockColours {
     }
 
     public int getBiomeColour(long blockAndMeta, int biome) {
+        return this.getBiomeTint(this.getBiomeTintOffset(biome), this.getEntry(blockAndMeta));
+    }
 
-        var type = blockTypeArray.get(blockAndMeta);
-        if (type == null)
-            type = BlockType.NORMAL;
+    public int getBiomeColour(BlockType type, int biome) {
+        return this.biomeTints[this.getBiomeTintOffset(biome) + type.ordinal()];
+    }
 
+    // offset of the row of the biome in the tint table, to pass to getBiomeTint.
+    // as the biome of a block column does not change this only needs to be looked
+    // up once per column.
+    public int getBiomeTintOffset(int biome) {
+        return ((biome >= 0) && (biome < this.waterMultiplierArray.length)) ?
+                (biome * BLOCK_TYPE_STRIDE) : (this.waterMultiplierArray.length * BLOCK_TYPE_STRIDE);
+    }
+
+    // biome colour multiplier of the block with the given entry (see getEntry)
+    public int getBiomeTint(int biomeTintOffset, long entry) {
+        return this.biomeTints[biomeTintOffset + (int) (entry >>> 32)];
+    }
+
+    private int getBiomeColourFromMultipliers(BlockType type, int biome) {
         int colourMultiplier;
         switch (type) {
             case GRASS:
@@ -112,16 +205,43 @@ public class BlockColours {
         return colourMultiplier;
     }
 
+    // fill in the tint table row of a biome from its multipliers
+    private void updateBiomeTints(int biome) {
+        for (BlockType type : blockTypes) {
+            this.biomeTints[(biome * BLOCK_TYPE_STRIDE) + type.ordinal()] = this.getBiomeColourFromMultipliers(type, biome);
+        }
+    }
+
     public void setBiomeWaterShading(int biomeID, int colour) {
-        this.waterMultiplierArray[biomeID & (biomeCount() - 1)] = colour;
+        biomeID &= biomeCount() - 1;
+        this.waterMultiplierArray[biomeID] = colour;
+        this.updateBiomeTints(biomeID);
     }
 
     public void setBiomeGrassShading(int biomeID, int colour) {
-        this.grassMultiplierArray[biomeID & (biomeCount() - 1)] = colour;
+        biomeID &= biomeCount() - 1;
+        this.grassMultiplierArray[biomeID] = colour;
+        this.updateBiomeTints(biomeID);
     }
 
     public void setBiomeFoliageShading(int biomeID, int colour) {
-        this.foliageMultiplierArray[biomeID & (biomeCount() - 1)] = colour;
+        biomeID &= biomeCount() - 1;
+        this.foliageMultiplierArray[biomeID] = colour;
+        this.updateBiomeTints(biomeID);
+    }
+
+    // hash of every block colour, block type and biome multiplier. stored with
+    // rendered regions so a rebuild can tell if they were rendered with different colours.
+    public int getColourHash() {
+        int[] hash = {Arrays.hashCode(this.denseEntries)};
+        this.sparseEntries.forEachEntry((blockAndMeta, entry) -> {
+            hash[0] += Long.hashCode(blockAndMeta) ^ Long.hashCode(entry);
+            return true;
+        });
+        hash[0] = (31 * hash[0]) + Arrays.hashCode(this.waterMultiplierArray);
+        hash[0] = (31 * hash[0]) + Arrays.hashCode(this.grassMultiplierArray);
+        hash[0] = (31 * hash[0]) + Arrays.hashCode(this.foliageMultiplierArray);
+        return hash[0];
     }
 
     private static BlockType getBlockTypeFromString(String typeString) {
@@ -168,8 +288,7 @@ public class BlockColours {
     }
 
     public BlockType getBlockType(long blockAndMeta) {
-        val type = blockTypeArray.get(blockAndMeta);
-        return type == null ? BlockType.NORMAL : type;
+        return entryBlockType(this.getEntry(blockAndMeta));
     }
 
     public BlockType getBlockType(int blockID, int meta) {
@@ -179,7 +298,9 @@ public class BlockColours {
     public void setBlockType(int blockID, int meta, BlockType type) {
         if (type == null)
             type = BlockType.NORMAL;
-        blockTypeArray.put((blockID & 0xFFFFFFFFL) | ((meta & 0xFFFFFFFFL) << 32), type);
+        long blockAndMeta = (blockID & 0xFFFFFFFFL) | ((meta & 0xFFFFFFFFL) << 32);
+        long entry = this.getEntry(blockAndMeta);
+        this.setEntry(blockAndMeta, (((long) type.ordinal()) << 32) | (entry & 0xFFFFFFFFL));
     }
 
     public static int getColourFromString(String s) {
@@ -366,7 +487,11 @@ public class BlockColours {
 
         TIntObjectMap<TIntObjectMap<String>> blocks = new TIntObjectHashMap<>();
 
-        bcArray.forEachEntry((packedID, value) -> {
+        this.forEachEntry((packedID, entry) -> {
+            int colour = entryColour(entry);
+            if (colour == 0) {
+                return true;
+            }
             int blockID = (int) (packedID & 0xFFFFFFFFL);
             TIntObjectMap<String> colours;
             if (blocks.containsKey(blockID))
@@ -376,7 +501,7 @@ public class BlockColours {
                 blocks.put(blockID, colours);
             }
             int meta = (int) ((packedID >> 32) & 0xFFFFFFFFL);
-            colours.put(meta, String.format("%08x", value));
+            colours.put(meta, String.format("%08x", colour));
             return true;
         });
 
@@ -399,7 +524,11 @@ public class BlockColours {
     public void saveBlockTypes(Writer fout) throws IOException {
         TIntObjectMap<TIntObjectMap<String>> blocks = new TIntObjectHashMap<>();
 
-        blockTypeArray.forEachEntry((packedID, value) -> {
+        this.forEachEntry((packedID, entry) -> {
+            BlockType type = entryBlockType(entry);
+            if (type == BlockType.NORMAL) {
+                return true;
+            }
             int blockID = (int) (packedID & 0xFFFFFFFFL);
             TIntObjectMap<String> blockTypes;
             if (blocks.containsKey(blockID))
@@ -410,7 +539,7 @@ public class BlockColours {
             }
             int meta = (int) ((packedID >> 32) & 0xFFFFFFFFL);
 
-            blockTypes.put(meta, getBlockTypeAsString(value));
+            blockTypes.put(meta, getBlockTypeAsString(type));
             return true;
         });
 
@@ -442,6 +571,150 @@ public class BlockColours {
         }
     }
 
+    //
+    // Methods for the binary block colours format.
+    //
+    // the binary format stores the packed arrays directly, so it is much faster
+    // to load and save than the text format, which is kept for files meant to be
+    // edited (the overrides and saved block colours files).
+    //
+    // format (big endian):
+    //   int    BINARY_MAGIC
+    //   int    BINARY_VERSION
+    //   short  key length, followed by the key as UTF-8 bytes
+    //   int    dense block count, int dense meta count, int biome count
+    //   long   dense entries (dense block count * dense meta count of them)
+    //   int    sparse entry count, followed by that many (long blockAndMeta, long entry) pairs
+    //   int    water, grass and foliage multipliers (biome count of each)
+    //
+    // the key identifies what the colours were generated from, a file with a
+    // different key, version or table sizes is not loaded.
+
+    private static final int BINARY_MAGIC = 0x4d574243; // "MWBC"
+    private static final int BINARY_VERSION = 1;
+
+    public void saveToBinaryFile(File f, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int sparseCount = this.sparseEntries.size();
+        int biomeCount = this.waterMultiplierArray.length;
+        ByteBuffer buf = ByteBuffer.allocate(
+                (4 * 2) + 2 + keyBytes.length + (4 * 3) +
+                (8 * this.denseEntries.length) +
+                4 + (16 * sparseCount) +
+                (4 * 3 * biomeCount));
+        buf.putInt(BINARY_MAGIC);
+        buf.putInt(BINARY_VERSION);
+        buf.putShort((short) keyBytes.length);
+        buf.put(keyBytes);
+        buf.putInt(this.denseBlockCount);
+        buf.putInt(this.denseMetaCount);
+        buf.putInt(biomeCount);
+        buf.asLongBuffer().put(this.denseEntries);
+        buf.position(buf.position() + (8 * this.denseEntries.length));
+        buf.putInt(sparseCount);
+        this.sparseEntries.forEachEntry((blockAndMeta, entry) -> {
+            buf.putLong(blockAndMeta);
+            buf.putLong(entry);
+            return true;
+        });
+        for (int[] multipliers : new int[][] {this.waterMultiplierArray, this.grassMultiplierArray, this.foliageMultiplierArray}) {
+            buf.asIntBuffer().put(multipliers);
+            buf.position(buf.position() + (4 * biomeCount));
+        }
+        // write to a temporary file first so that a save interrupted part way
+        // never leaves a truncated cache file behind.
+        File tmpFile = new File(f.getPath() + ".tmp");
+        try {
+            Files.write(tmpFile.toPath(), buf.array());
+        } catch (IOException e) {
+            RegionManager.logError("saving block colours: could not write to '%s'", tmpFile);
+            tmpFile.delete();
+            return;
+        }
+        try {
+            try {
+                Files.move(tmpFile.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            RegionManager.logError("saving block colours: could not replace '%s': %s", f, e);
+            tmpFile.delete();
+        }
+    }
+
+    // load from a file written by saveToBinaryFile with the same key.
+    // returns false, leaving the block colours unchanged, if there is no such file
+    // or it cannot be loaded.
+    public boolean loadFromBinaryFile(File f, String key) {
+        if (!f.isFile()) {
+            return false;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            if ((buf.getInt() != BINARY_MAGIC) || (buf.getInt() != BINARY_VERSION)) {
+                return false;
+            }
+            byte[] keyBytes = new byte[buf.getShort() & 0xffff];
+            buf.get(keyBytes);
+            if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                return false;
+            }
+            int biomeCount = this.waterMultiplierArray.length;
+            if ((buf.getInt() != this.denseBlockCount) || (buf.getInt() != this.denseMetaCount) ||
+                    (buf.getInt() != biomeCount)) {
+                return false;
+            }
+
+            long[] dense = new long[this.denseEntries.length];
+            buf.asLongBuffer().get(dense);
+            buf.position(buf.position() + (8 * dense.length));
+            int sparseCount = buf.getInt();
+            if ((sparseCount < 0) || (sparseCount > (buf.remaining() / 16))) {
+                return false;
+            }
+            long[] sparse = new long[sparseCount * 2];
+            buf.asLongBuffer().get(sparse);
+            buf.position(buf.position() + (8 * sparse.length));
+            int[][] multipliers = new int[3][biomeCount];
+            for (int[] m : multipliers) {
+                buf.asIntBuffer().get(m);
+                buf.position(buf.position() + (4 * biomeCount));
+            }
+
+            // check the block types are valid before using any of it
+            for (long entry : dense) {
+                if ((entry >>> 32) >= blockTypes.length) {
+                    return false;
+                }
+            }
+            for (int i = 1; i < sparse.length; i += 2) {
+                if ((sparse[i] >>> 32) >= blockTypes.length) {
+                    return false;
+                }
+            }
+
+            System.arraycopy(dense, 0, this.denseEntries, 0, dense.length);
+            this.sparseEntries.clear();
+            for (int i = 0; i < sparse.length; i += 2) {
+                this.setEntry(sparse[i], sparse[i + 1]);
+            }
+            System.arraycopy(multipliers[0], 0, this.waterMultiplierArray, 0, biomeCount);
+            System.arraycopy(multipliers[1], 0, this.grassMultiplierArray, 0, biomeCount);
+            System.arraycopy(multipliers[2], 0, this.foliageMultiplierArray, 0, biomeCount);
+            for (int biome = 0; biome < biomeCount; biome++) {
+                this.updateBiomeTints(biome);
+            }
+            return true;
+
+        } catch (IOException e) {
+            RegionManager.logError("loading block colours: could not read '%s'", f);
+        } catch (BufferUnderflowException e) {
+            RegionManager.logWarning("loading block colours: '%s' is truncated", f);
+        }
+        return false;
+    }
+
     public static void writeOverridesFile(File f) {
         try (Writer fout = Files.newBufferedWriter(f.toPath())) {
             fout.write(
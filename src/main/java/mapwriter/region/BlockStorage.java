@@ -13,20 +13,44 @@ import net.minecraftforge.common.util.Constants;
 
 import static mapwriter.region.Util.fetchSafe;
 import static mapwriter.region.Util.fetchSafeNibble;
-import static mapwriter.region.Util.nullSafeCopy;
+import static mapwriter.region.Util.hash;
+import static mapwriter.region.Util.pooledCopy;
 
 public interface BlockStorage {
     int idAt(int subchunk, int offset);
     int metaAt(int subchunk, int offset);
     boolean hasSubChunk(int subchunk);
+
+    // fill ids and metas with the block id and metadata of every block in a
+    // section, indexed by the same offset as idAt and metaAt.
+    default void unpack(int subchunk, int[] ids, int[] metas) {
+        for (int offset = 0; offset < 4096; offset++) {
+            ids[offset] = this.idAt(subchunk, offset);
+            metas[offset] = this.metaAt(subchunk, offset);
+        }
+    }
     void serialize(NBTTagCompound compound);
 
+    // return the arrays of a clone to the SectionArrayPool.
+    // the storage must not be used afterwards.
+    void release();
+
+    // copies the sections of the chunk into arrays from the SectionArrayPool.
+    // sections with no blocks are skipped rather than copied.
     static BlockStorage clone(Chunk chunk) {
         return EndlessIDsCompat.blocks()
                ? EndlessIDs.clone(chunk)
                : Vanilla.clone(chunk);
     }
 
+    // hash of the block ids and metadata of the chunk, used to skip rendering chunks
+    // that have not changed since they were last rendered.
+    static long contentHash(Chunk chunk) {
+        return EndlessIDsCompat.blocks()
+               ? EndlessIDs.contentHash(chunk)
+               : Vanilla.contentHash(chunk);
+    }
+
     static BlockStorage deserialize(NBTTagCompound compound) {
         return EndlessIDsCompat.blocks()
                ? EndlessIDs.deserialize(compound)
@@ -55,6 +79,35 @@ public interface BlockStorage {
             return lsb != null && lsb[subchunk] != null;
         }
 
+        @Override
+        public void unpack(int subchunk, int[] ids, int[] metas) {
+            byte[] l = (lsb != null) ? lsb[subchunk] : null;
+            byte[] m = (msb != null) ? msb[subchunk] : null;
+            byte[] d = (meta != null) ? meta[subchunk] : null;
+            if ((l == null) || (l.length < 4096) || (d == null) || (d.length < 2048) ||
+                    ((m != null) && (m.length < 2048))) {
+                // missing or truncated arrays, use the bounds checked accessors
+                BlockStorage.super.unpack(subchunk, ids, metas);
+                return;
+            }
+            for (int offset = 0; offset < 4096; offset++) {
+                int shift = (offset & 1) << 2;
+                int id = l[offset] & 0xff;
+                if (m != null) {
+                    id |= ((m[offset >> 1] >> shift) & 0xf) << 8;
+                }
+                ids[offset] = id;
+                metas[offset] = (d[offset >> 1] >> shift) & 0xf;
+            }
+        }
+
+        @Override
+        public void release() {
+            SectionArrayPool.release(lsb);
+            SectionArrayPool.release(msb);
+            SectionArrayPool.release(meta);
+        }
+
         @Override
         public void serialize(NBTTagCompound compound) {
             val nbtList = new NBTTagList();
@@ -99,16 +152,32 @@ public interface BlockStorage {
             val storageArrays = chunk.getBlockStorageArray();
             if (storageArrays != null) {
                 for (val storage: storageArrays) {
-                    if (storage != null) {
+                    if (storage != null && !storage.isEmpty()) {
                         int y = (storage.getYLocation() >> 4) & 0xf;
-                        lsb[y] = nullSafeCopy(storage.getBlockLSBArray());
-                        msb[y] = nullSafeCopy(storage.getBlockMSBArray());
-                        meta[y] = nullSafeCopy(storage.getMetadataArray());
+                        lsb[y] = pooledCopy(storage.getBlockLSBArray());
+                        msb[y] = pooledCopy(storage.getBlockMSBArray());
+                        meta[y] = pooledCopy(storage.getMetadataArray());
                     }
                 }
             }
             return new Vanilla(lsb, msb, meta);
         }
+
+        public static long contentHash(Chunk chunk) {
+            long hash = 0;
+            val storageArrays = chunk.getBlockStorageArray();
+            if (storageArrays != null) {
+                for (val storage: storageArrays) {
+                    if (storage != null && !storage.isEmpty()) {
+                        hash = (hash * 31) + storage.getYLocation();
+                        hash = hash(hash, storage.getBlockLSBArray());
+                        hash = hash(hash, storage.getBlockMSBArray());
+                        hash = hash(hash, storage.getMetadataArray());
+                    }
+                }
+            }
+            return hash;
+        }
     }
 
     @RequiredArgsConstructor
@@ -141,6 +210,17 @@ public interface BlockStorage {
             return b1 != null && b1[subchunk] != null;
         }
 
+        @Override
+        public void release() {
+            SectionArrayPool.release(b1);
+            SectionArrayPool.release(b2Low);
+            SectionArrayPool.release(b2High);
+            SectionArrayPool.release(b3);
+            SectionArrayPool.release(m1Low);
+            SectionArrayPool.release(m1High);
+            SectionArrayPool.release(m2);
+        }
+
         public static EndlessIDs deserialize(NBTTagCompound compound) {
             val list = compound.getTagList("Sections", Constants.NBT.TAG_COMPOUND);
             byte[][] b1 = new byte[16][];
@@ -150,8 +230,9 @@ public interface BlockStorage {
             byte[][] m1Low = new byte[16][];
             byte[][] m1High = new byte[16][];
             byte[][] m2 = new byte[16][];
-            for (int y = 0; y < 16; y++) {
-                val nbt = list.getCompoundTagAt(y);
+            for (int k = 0; k < list.tagCount(); k++) {
+                val nbt = list.getCompoundTagAt(k);
+                int y = nbt.getByte("Y") & 0xF;
                 b1[y] = nbt.getByteArray("Blocks");
                 b2Low[y] = nbt.hasKey("Add") ? nbt.getByteArray("Add") : null;
                 b2High[y] = nbt.hasKey("BlocksB2Hi") ? nbt.getByteArray("BlocksB2Hi") : null;
@@ -176,22 +257,43 @@ public interface BlockStorage {
             val storageArrays = chunk.getBlockStorageArray();
             if (storageArrays != null) {
                 for (val vStorage: storageArrays) {
-                    if (vStorage != null) {
+                    if (vStorage != null && !vStorage.isEmpty()) {
                         int y = (vStorage.getYLocation() >> 4) & 0xf;
                         val storage = (SubChunkBlockHook) vStorage;
-                        b1[y] = nullSafeCopy(storage.getB1());
-                        b2Low[y] = nullSafeCopy(storage.getB2Low());
-                        b2High[y] = nullSafeCopy(storage.getB2High());
-                        b3[y] = nullSafeCopy(storage.getB3());
-                        m1Low[y] = nullSafeCopy(storage.getM1Low());
-                        m1High[y] = nullSafeCopy(storage.getM1High());
-                        m2[y] = nullSafeCopy(storage.getM2());
+                        b1[y] = pooledCopy(storage.getB1());
+                        b2Low[y] = pooledCopy(storage.getB2Low());
+                        b2High[y] = pooledCopy(storage.getB2High());
+                        b3[y] = pooledCopy(storage.getB3());
+                        m1Low[y] = pooledCopy(storage.getM1Low());
+                        m1High[y] = pooledCopy(storage.getM1High());
+                        m2[y] = pooledCopy(storage.getM2());
                     }
                 }
             }
             return new EndlessIDs(b1, b2Low, b2High, b3, m1Low, m1High, m2);
         }
 
+        public static long contentHash(Chunk chunk) {
+            long hash = 0;
+            val storageArrays = chunk.getBlockStorageArray();
+            if (storageArrays != null) {
+                for (val vStorage: storageArrays) {
+                    if (vStorage != null && !vStorage.isEmpty()) {
+                        val storage = (SubChunkBlockHook) vStorage;
+                        hash = (hash * 31) + vStorage.getYLocation();
+                        hash = hash(hash, storage.getB1());
+                        hash = hash(hash, storage.getB2Low());
+                        hash = hash(hash, storage.getB2High());
+                        hash = hash(hash, storage.getB3());
+                        hash = hash(hash, storage.getM1Low());
+                        hash = hash(hash, storage.getM1High());
+                        hash = hash(hash, storage.getM2());
+                    }
+                }
+            }
+            return hash;
+        }
+
         @Override
         public void serialize(NBTTagCompound compound) {
             val nbtList = new NBTTagList();
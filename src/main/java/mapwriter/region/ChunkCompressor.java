@@ -0,0 +1,123 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+Deflates and inflates chunk NBT data in parallel on a shared fork-join pool.
+
+Reading and writing region files stays on the single background thread that
+handles the region (so file access remains ordered), while the CPU heavy part,
+serialising + deflating chunks to be saved or inflating + parsing chunks read
+for a rebuild, is spread over the pool.
+
+Each thread keeps its own Deflater and Inflater which are reset and reused for
+every chunk rather than allocating (and finalizing) new native zlib streams.
+*/
+
+public class ChunkCompressor {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    // get the reset deflater of the calling thread
+    public static Deflater getDeflater() {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        return deflater;
+    }
+
+    // get the reset inflater of the calling thread
+    public static Inflater getInflater() {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        return inflater;
+    }
+
+    public static int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    // run a larger job made up mostly of chunk (de)compression, such as
+    // rebuilding a region, on the pool.
+    public static <T> Future<T> submit(Callable<T> job) {
+        return pool.submit(job);
+    }
+
+    // run the tasks on the pool and wait for all of them, returning their
+    // results in the same order. tasks that throw produce a null result.
+    // when called from a job already running on the pool (such as a region
+    // rebuild) the tasks are forked, so that the calling worker runs queued tasks
+    // while it joins rather than blocking a pool thread until the others finish.
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<ForkJoinTask<T>> forkJoinTasks = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            forkJoinTasks.add(ForkJoinTask.adapt(task));
+        }
+        boolean inPool = (ForkJoinTask.getPool() == pool);
+        for (ForkJoinTask<T> task : forkJoinTasks) {
+            if (inPool) {
+                task.fork();
+            } else {
+                pool.execute(task);
+            }
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<T> task : forkJoinTasks) {
+            task.quietlyJoin();
+            T result = null;
+            if (task.isCompletedAbnormally()) {
+                RegionManager.logError("exception in chunk compressor task: %s", task.getException());
+            } else {
+                result = task.getRawResult();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    // serialise and deflate the chunks in parallel.
+    // the returned list has a null entry for each chunk that failed to compress.
+    public static List<RegionFile.CompressedChunk> compress(Collection<MwChunk> chunks) {
+        List<Callable<RegionFile.CompressedChunk>> tasks = new ArrayList<>(chunks.size());
+        for (MwChunk chunk : chunks) {
+            tasks.add(chunk::compress);
+        }
+        return invokeAll(tasks);
+    }
+
+    // inflate and parse the compressed chunks of a region file in parallel.
+    // compressedChunks is indexed by (z << 5) | x as returned by
+    // RegionFile.readCompressedChunks, chunkX and chunkZ are the chunk coordinates
+    // of the first chunk in the region.
+    // the returned array has null entries for chunks with no data.
+    public static MwChunk[] decompress(int chunkX, int chunkZ, int dimension, RegionFile.CompressedChunk[] compressedChunks) {
+        List<Callable<MwChunk>> tasks = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < compressedChunks.length; i++) {
+            RegionFile.CompressedChunk compressedChunk = compressedChunks[i];
+            if (compressedChunk != null) {
+                int x = chunkX + (i & 31);
+                int z = chunkZ + (i >> 5);
+                tasks.add(() -> MwChunk.read(x, z, dimension, compressedChunk));
+                indices.add(i);
+            }
+        }
+        List<MwChunk> results = invokeAll(tasks);
+        MwChunk[] chunks = new MwChunk[compressedChunks.length];
+        for (int i = 0; i < results.size(); i++) {
+            chunks[indices.get(i)] = results.get(i);
+        }
+        return chunks;
+    }
+}
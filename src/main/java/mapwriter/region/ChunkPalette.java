@@ -0,0 +1,147 @@
+package mapwriter.region;
+
+import java.util.Arrays;
+
+/*
+The blocks of a chunk converted to palette indices for rendering.
+
+Each distinct block id and metadata in the chunk gets one palette entry, holding
+its BlockColours entry (colour and block type) resolved when it is added.
+Each section of the chunk that is read from often enough is converted into an
+array of palette indices (one char per block).
+The column loops in ChunkRender then only index arrays rather than reassembling
+the block id and metadata of every block from the section nibble arrays and
+looking up both in the BlockColours hash maps.
+
+Palette entry 0 is always air (block 0, metadata 0), so sections with no blocks
+all share EMPTY_SECTION.
+*/
+
+public class ChunkPalette implements ChunkRender.BlockEntries {
+
+    private static final int SECTION_VOLUME = 4096;
+    private static final char[] EMPTY_SECTION = new char[SECTION_VOLUME];
+    // a section is only converted once this many of its blocks have been read,
+    // as surface renders starting from the height map usually read just a few
+    // blocks per column, which is cheaper than converting the whole section.
+    // blocks read before then are looked up individually.
+    private static final int CONVERT_THRESHOLD = 512;
+
+    // arrays the sections are unpacked into, shared by the palettes of each thread
+    private static final ThreadLocal<int[][]> unpackArrays =
+            ThreadLocal.withInitial(() -> new int[][] {new int[SECTION_VOLUME], new int[SECTION_VOLUME]});
+
+    private final BlockColours bc;
+    private final MwChunk chunk;
+    private final char[][] sections = new char[16][];
+    // number of blocks read from each section before it was converted
+    private final int[] sectionReads = new int[16];
+
+    // palette entries
+    private long[] entries = new long[64];
+    private int size = 0;
+
+    // open addressing map from packed block and metadata to palette index + 1,
+    // 0 marks an empty slot
+    private long[] mapKeys = new long[128];
+    private int[] mapIndices = new int[128];
+
+    public ChunkPalette(BlockColours bc, MwChunk chunk) {
+        this.bc = bc;
+        this.chunk = chunk;
+        this.getOrAddIndex(0L);
+    }
+
+    // palette index of the block at the chunk coordinates
+    public int getIndex(int x, int y, int z) {
+        int yi = (y >> 4) & 0xf;
+        char[] section = this.sections[yi];
+        if (section == null) {
+            if (++this.sectionReads[yi] <= CONVERT_THRESHOLD) {
+                return this.getOrAddIndex(this.chunk.getBlockAndMetadataPacked(x, y, z));
+            }
+            section = this.convertSection(yi);
+        }
+        return section[((y & 0xf) << 8) | ((z & 0xf) << 4) | (x & 0xf)];
+    }
+
+    // the BlockColours entry of a palette index
+    public long getEntry(int index) {
+        return this.entries[index];
+    }
+
+    @Override
+    public long getBlockEntry(int x, int y, int z) {
+        return this.entries[this.getIndex(x, y, z)];
+    }
+
+    private char[] convertSection(int yi) {
+        int[][] arrays = unpackArrays.get();
+        int[] ids = arrays[0];
+        int[] metas = arrays[1];
+        char[] section = EMPTY_SECTION;
+        if (this.chunk.getSectionBlocks(yi, ids, metas)) {
+            section = new char[SECTION_VOLUME];
+            // runs of the same block are common, so remember the last one
+            long lastKey = 0L;
+            int lastIndex = 0;
+            for (int offset = 0; offset < SECTION_VOLUME; offset++) {
+                long key = ((metas[offset] & 0xFFFFFFFFL) << 32) | (ids[offset] & 0xFFFFFFFFL);
+                if (key != lastKey) {
+                    lastKey = key;
+                    lastIndex = this.getOrAddIndex(key);
+                }
+                section[offset] = (char) lastIndex;
+            }
+        }
+        this.sections[yi] = section;
+        return section;
+    }
+
+    private static int getHomeSlot(long key, int mask) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return ((int) (h ^ (h >>> 32))) & mask;
+    }
+
+    private int getOrAddIndex(long key) {
+        int mask = this.mapKeys.length - 1;
+        int slot = getHomeSlot(key, mask);
+        while (this.mapIndices[slot] != 0) {
+            if (this.mapKeys[slot] == key) {
+                return this.mapIndices[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // new palette entry
+        int index = this.size++;
+        if (index == this.entries.length) {
+            this.entries = Arrays.copyOf(this.entries, index * 2);
+        }
+        this.entries[index] = this.bc.getEntry(key);
+        this.mapKeys[slot] = key;
+        this.mapIndices[slot] = index + 1;
+        if ((this.size * 2) > this.mapKeys.length) {
+            this.resizeMap(this.mapKeys.length * 2);
+        }
+        return index;
+    }
+
+    private void resizeMap(int capacity) {
+        long[] oldKeys = this.mapKeys;
+        int[] oldIndices = this.mapIndices;
+        this.mapKeys = new long[capacity];
+        this.mapIndices = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldIndices[i] != 0) {
+                int slot = getHomeSlot(oldKeys[i], mask);
+                while (this.mapIndices[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                this.mapKeys[slot] = oldKeys[i];
+                this.mapIndices[slot] = oldIndices[i];
+            }
+        }
+    }
+}
@@ -13,14 +13,34 @@ public class ChunkRender {
     public static final double brightenAmplitude = 0.7;
     public static final double darkenAmplitude = 1.4;
 
-    // get the height shading of a pixel.
-    // requires the pixel to the west and the pixel to the north to have their
-    // heights stored in the alpha channel to work.
-    // the "height" of a pixel is the y value of the first opaque block in
-    // the block column that created the pixel.
-    // height values of 0 and 255 are ignored as these are used as the clear
-    // values for pixels.
-    public static double getHeightShading(int height, int heightW, int heightN) {
+    // use the fixed point integer version of getColumnColour rather than the
+    // floating point one. its pixels may differ from the floating point version by
+    // at most 1 in each colour component. set from the mapwriter config.
+    public static boolean useFixedPointColumnColour = true;
+
+    // height shading for every possible height difference, indexed by
+    // getHeightShadingIndex
+    private static final int HEIGHT_SHADING_LUT_OFFSET = 2 * 255;
+    private static final double[] heightShadingLut = new double[(2 * HEIGHT_SHADING_LUT_OFFSET) + 1];
+    // (heightShading + 1.0) as 16.16 fixed point, the shading factor used by the
+    // fixed point getColumnColour for a light value of 15
+    private static final int[] shadingFixedLut = new int[heightShadingLut.length];
+
+    static {
+        for (int i = 0; i < heightShadingLut.length; i++) {
+            // heightDiff / (samples * 255.0) is the same as heightDiffSum / 510.0
+            double heightDiffFactor = (double) (i - HEIGHT_SHADING_LUT_OFFSET) / (2.0 * 255.0);
+            heightShadingLut[i] = (heightDiffFactor >= 0.0) ?
+                    Math.pow(heightDiffFactor, brightenExponent) * brightenAmplitude :
+                    -Math.pow(-heightDiffFactor, darkenExponent) * darkenAmplitude;
+            shadingFixedLut[i] = (int) Math.round((heightShadingLut[i] + 1.0) * 65536.0);
+        }
+    }
+
+    // get the index of the height shading of a pixel in the height shading tables.
+    // the height difference is scaled to the range [-510, 510] whether one or both
+    // neighbouring pixels have a valid height.
+    private static int getHeightShadingIndex(int height, int heightW, int heightN) {
         int samples = 0;
         int heightDiff = 0;
 
@@ -34,18 +54,24 @@ public class ChunkRender {
             samples++;
         }
 
-        double heightDiffFactor = 0.0;
-        if (samples > 0) {
-            heightDiffFactor = (double) heightDiff / ((double) samples * 255.0);
-        }
+        return ((samples == 1) ? (heightDiff * 2) : heightDiff) + HEIGHT_SHADING_LUT_OFFSET;
+    }
 
-        // emphasize small differences in height, but as the difference in height increases,
-        // don't increase so much
-        // TODO: probably more accurate to use atan here rather than a fractional
-        // exponent.
-        return (heightDiffFactor >= 0.0) ?
-                Math.pow(heightDiffFactor, brightenExponent) * brightenAmplitude :
-                -Math.pow(-heightDiffFactor, darkenExponent) * darkenAmplitude;
+    // get the height shading of a pixel.
+    // requires the pixel to the west and the pixel to the north to have their
+    // heights stored in the alpha channel to work.
+    // the "height" of a pixel is the y value of the first opaque block in
+    // the block column that created the pixel.
+    // height values of 0 and 255 are ignored as these are used as the clear
+    // values for pixels.
+    //
+    // the shading emphasizes small differences in height, but as the difference in
+    // height increases, doesn't increase so much.
+    // TODO: probably more accurate to use atan here rather than a fractional
+    // exponent.
+    // the values are looked up from a table filled in using the same calculation.
+    public static double getHeightShading(int height, int heightW, int heightN) {
+        return heightShadingLut[getHeightShadingIndex(height, heightW, heightN)];
     }
 
     // calculate the colour of a pixel by alpha blending the colour of each block
@@ -71,19 +97,52 @@ public class ChunkRender {
     // rather than the more common "back to front".
     //
     public static int getColumnColour(BlockColours bc, IChunk chunk, int x, int y, int z, int heightW, int heightN) {
+        return getColumnColour(new ChunkBlockEntries(bc, chunk), bc, chunk, x, y, z, heightW, heightN);
+    }
+
+    // the BlockColours entries (colour and block type) of the blocks of a chunk,
+    // either looked up one block at a time (ChunkBlockEntries) or from the palette
+    // of the chunk (ChunkPalette).
+    interface BlockEntries {
+        long getBlockEntry(int x, int y, int z);
+    }
+
+    static class ChunkBlockEntries implements BlockEntries {
+        private final BlockColours bc;
+        private final IChunk chunk;
+
+        ChunkBlockEntries(BlockColours bc, IChunk chunk) {
+            this.bc = bc;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public long getBlockEntry(int x, int y, int z) {
+            return this.bc.getEntry(this.chunk.getBlockAndMetadataPacked(x, y, z));
+        }
+    }
+
+    static int getColumnColour(BlockEntries entries, BlockColours bc, IChunk chunk, int x, int y, int z, int heightW, int heightN) {
+        return useFixedPointColumnColour ?
+                getColumnColourFixed(entries, bc, chunk, x, y, z, heightW, heightN) :
+                getColumnColourDouble(entries, bc, chunk, x, y, z, heightW, heightN);
+    }
+
+    static int getColumnColourDouble(BlockEntries entries, BlockColours bc, IChunk chunk, int x, int y, int z, int heightW, int heightN) {
         double a = 1.0;
         double r = 0.0;
         double g = 0.0;
         double b = 0.0;
+        // the biome is the same for the whole column
+        int biomeTintOffset = bc.getBiomeTintOffset(chunk.getBiome(x, z));
         for (; y > 0; y--) {
-            long blockAndMeta = chunk.getBlockAndMetadataPacked(x, y, z);
+            long entry = entries.getBlockEntry(x, y, z);
 
-            int c1 = bc.getColour(blockAndMeta);
+            int c1 = BlockColours.entryColour(entry);
             int alpha = (c1 >> 24) & 0xff;
             // no need to process block if it is transparent
             if (alpha > 0) {
-                int biome = chunk.getBiome(x, z);
-                int c2 = bc.getBiomeColour(blockAndMeta, biome);
+                int c2 = bc.getBiomeTint(biomeTintOffset, entry);
 
                 // extract colour components as normalized doubles
                 double c1A = (double) (alpha) / 255.0;
@@ -134,6 +193,61 @@ public class ChunkRender {
                 ((((int) (b * 255.0)) & 0xff));
     }
 
+    // fixed point version of getColumnColour.
+    // the running alpha is kept as 16.16 fixed point, and the colour sums are scaled
+    // by 2^16 * 255^3 so each block adds an exact integer product of its alpha,
+    // colour and biome colour components.
+    // rounding of the running alpha and of the shading factor means a component can
+    // come out 1 lower or higher than in the floating point version.
+    static int getColumnColourFixed(BlockEntries entries, BlockColours bc, IChunk chunk, int x, int y, int z, int heightW, int heightN) {
+        long a = 1L << 16;
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        // the biome is the same for the whole column
+        int biomeTintOffset = bc.getBiomeTintOffset(chunk.getBiome(x, z));
+        for (; y > 0; y--) {
+            long entry = entries.getBlockEntry(x, y, z);
+
+            int c1 = BlockColours.entryColour(entry);
+            int alpha = (c1 >> 24) & 0xff;
+            // no need to process block if it is transparent
+            if (alpha > 0) {
+                int c2 = bc.getBiomeTint(biomeTintOffset, entry);
+
+                // a * c1A, scaled by 2^16 * 255
+                long weight = a * alpha;
+                r += weight * (((c1 >> 16) & 0xff) * ((c2 >> 16) & 0xff));
+                g += weight * (((c1 >> 8) & 0xff) * ((c2 >> 8) & 0xff));
+                b += weight * ((c1 & 0xff) * (c2 & 0xff));
+                // a * (1.0 - c1A)
+                a -= weight / 255;
+            }
+            // break when an opaque block is encountered
+            if (alpha == 0xff) {
+                break;
+            }
+        }
+
+        long shading = shadingFixedLut[getHeightShadingIndex(y, heightW, heightN)];
+        int lightValue = chunk.getLightValue(x, y + 1, z);
+        if (lightValue != 15) {
+            shading = (shading * lightValue) / 15;
+        }
+
+        // the sums are scaled by 2^16 * 255^3 and the shading by 2^16, dividing by
+        // 2^32 * 255^2 leaves the shaded components in the range [0, 255]
+        final long scale = (1L << 32) * 255L * 255L;
+        return ((y & 0xff) << 24) |
+                (clampComponent((r * shading) / scale) << 16) |
+                (clampComponent((g * shading) / scale) << 8) |
+                clampComponent((b * shading) / scale);
+    }
+
+    private static int clampComponent(long c) {
+        return (int) Math.min(Math.max(0L, c), 255L);
+    }
+
     static int getPixelHeightN(int[] pixels, int offset, int scanSize) {
         return (offset >= scanSize) ? ((pixels[offset - scanSize] >> 24) & 0xff) : -1;
     }
@@ -142,8 +256,17 @@ public class ChunkRender {
         return ((offset & (scanSize - 1)) >= 1) ? ((pixels[offset - 1] >> 24) & 0xff) : -1;
     }
 
+    // render a chunk snapshot using a palette of its blocks, converting each
+    // section of the chunk at most once.
+    public static void renderSurface(BlockColours bc, MwChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
+        renderSurface(new ChunkPalette(bc, chunk), bc, chunk, pixels, offset, scanSize, dimensionHasCeiling);
+    }
+
     public static void renderSurface(BlockColours bc, IChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
-        int chunkMaxY = chunk.getMaxY();
+        renderSurface(new ChunkBlockEntries(bc, chunk), bc, chunk, pixels, offset, scanSize, dimensionHasCeiling);
+    }
+
+    static void renderSurface(BlockEntries entries, BlockColours bc, IChunk chunk, int[] pixels, int offset, int scanSize, boolean dimensionHasCeiling) {
         for (int z = 0; z < MwChunk.SIZE; z++) {
             for (int x = 0; x < MwChunk.SIZE; x++) {
                 // for the nether dimension search for the first non-opaque
@@ -154,19 +277,20 @@ public class ChunkRender {
                 int y;
                 if (dimensionHasCeiling) {
                     for (y = 127; y >= 0; y--) {
-                        long blockAndMeta = chunk.getBlockAndMetadataPacked(x, y, z);
-                        int alpha = (bc.getColour(blockAndMeta) >> 24) & 0xff;
+                        int alpha = (BlockColours.entryColour(entries.getBlockEntry(x, y, z)) >> 24) & 0xff;
                         if (alpha != 0xff) {
                             break;
                         }
                     }
                 } else {
-                    y = chunkMaxY;
+                    // start at the highest non-air block rather than the top of the
+                    // highest section, skipping the air above it.
+                    y = chunk.getHeight(x, z);
                 }
 
                 int pixelOffset = offset + (z * scanSize) + x;
                 pixels[pixelOffset] = getColumnColour(
-                        bc, chunk, x, y, z,
+                        entries, bc, chunk, x, y, z,
                         getPixelHeightW(pixels, pixelOffset, scanSize),
                         getPixelHeightN(pixels, pixelOffset, scanSize)
                 );
@@ -176,6 +300,7 @@ public class ChunkRender {
 
     public static void renderUnderground(BlockColours bc, IChunk chunk, int[] pixels, int offset, int scanSize, int startY, byte[] mask) {
         startY = Math.min(Math.max(0, startY), 255);
+        BlockEntries entries = new ChunkBlockEntries(bc, chunk);
         for (int z = 0; z < MwChunk.SIZE; z++) {
             for (int x = 0; x < MwChunk.SIZE; x++) {
 
@@ -201,7 +326,7 @@ public class ChunkRender {
 
                 int pixelOffset = offset + (z * scanSize) + x;
                 pixels[pixelOffset] = getColumnColour(
-                        bc, chunk, x, lastNonTransparentY, z,
+                        entries, bc, chunk, x, lastNonTransparentY, z,
                         getPixelHeightW(pixels, pixelOffset, scanSize),
                         getPixelHeightN(pixels, pixelOffset, scanSize)
                 );
@@ -0,0 +1,113 @@
+package mapwriter.region;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+Write-behind queue of chunks waiting to be saved to region files.
+
+Chunks are queued per region (one region is one region file). Queueing a chunk
+that is already queued replaces the earlier copy, so only the latest copy of a
+chunk is written.
+When a region's queued chunks are saved they are all deflated (in parallel by
+ChunkCompressor) and then written
+to the region file in a single batch, in file order with one header update,
+rather than one scattered write and header update per chunk.
+Queued chunks are copies made with ChunkManager.copyToMwChunk, which are
+released to the SectionArrayPool once saved or replaced.
+
+add() is called from the main thread, saveRegion() from the background thread
+that handles the region.
+*/
+
+public class ChunkSaveQueue {
+
+    private final Map<Long, Map<Integer, MwChunk>> pendingRegions = new HashMap<>();
+    private int pendingChunkCount = 0;
+
+    public static Long getRegionKey(MwChunk chunk) {
+        return Region.getKey(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
+    }
+
+    // queue a chunk to be saved, replacing any queued copy of the same chunk.
+    // the queue takes ownership of the chunk, a replaced copy is released to the
+    // SectionArrayPool as it will never be written.
+    // returns true if no other chunks were queued for the chunk's region, in which
+    // case the caller needs to arrange for saveRegion to be called for it.
+    public synchronized boolean add(MwChunk chunk) {
+        Long regionKey = getRegionKey(chunk);
+        Map<Integer, MwChunk> chunks = this.pendingRegions.get(regionKey);
+        boolean newRegion = (chunks == null);
+        if (newRegion) {
+            chunks = new HashMap<>();
+            this.pendingRegions.put(regionKey, chunks);
+        }
+        MwChunk replacedChunk = chunks.put(((chunk.z & 31) << 5) | (chunk.x & 31), chunk);
+        if (replacedChunk == null) {
+            this.pendingChunkCount++;
+        } else if (replacedChunk != chunk) {
+            replacedChunk.release();
+        }
+        return newRegion;
+    }
+
+    private synchronized Collection<MwChunk> take(Long regionKey) {
+        Map<Integer, MwChunk> chunks = this.pendingRegions.remove(regionKey);
+        if (chunks != null) {
+            this.pendingChunkCount -= chunks.size();
+            return chunks.values();
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return this.pendingChunkCount;
+    }
+
+    // write all chunks queued for a region to its region file.
+    // returns true on error.
+    public boolean saveRegion(Long regionKey, RegionFileCache regionFileCache) {
+        Collection<MwChunk> chunks = this.take(regionKey);
+        if ((chunks == null) || chunks.isEmpty()) {
+            return false;
+        }
+
+        MwChunk firstChunk = chunks.iterator().next();
+        RegionFile regionFile = regionFileCache.getRegionFile(firstChunk.x << 4, firstChunk.z << 4, firstChunk.dimension);
+        boolean error = false;
+        if (!regionFile.isOpen()) {
+            error = regionFile.open();
+        }
+        if (!error) {
+            // deflate in parallel, then write the batch from this thread
+            List<RegionFile.CompressedChunk> compressedChunks = ChunkCompressor.compress(chunks);
+            if (compressedChunks.removeIf(Objects::isNull)) {
+                error = true;
+            }
+            regionFile.writeCompressedChunks(compressedChunks);
+        } else {
+            RegionManager.logError("error: could not open region file %s to save %d chunks", regionFile, chunks.size());
+        }
+        // the compressed data no longer refers to the chunks, so return their
+        // section arrays to the pool whether or not they were written
+        for (MwChunk chunk : chunks) {
+            chunk.release();
+        }
+        return error;
+    }
+
+    // write every queued chunk
+    public void saveAll(RegionFileCache regionFileCache) {
+        List<Long> regionKeys;
+        synchronized (this) {
+            regionKeys = new ArrayList<>(this.pendingRegions.keySet());
+        }
+        for (Long regionKey : regionKeys) {
+            this.saveRegion(regionKey, regionFileCache);
+        }
+    }
+}
@@ -8,4 +8,8 @@ public interface IChunk {
     int getLightValue(int x, int y, int z);
 
     int getMaxY();
+
+    // y of the highest block in the column that is not air, or 0 if there is none.
+    // may be higher, but never lower, than the highest block.
+    int getHeight(int x, int z);
 }
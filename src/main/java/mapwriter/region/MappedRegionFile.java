@@ -0,0 +1,237 @@
+package mapwriter.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/*
+RegionFile implementation using NIO FileChannel I/O.
+The 8 KiB header (chunk locations and timestamps) is memory mapped, so header
+updates are plain int writes to the mapped buffer rather than a seek and a 4 byte
+write each.
+Chunk data is not mapped: it is copied by a single positional channel read into
+a pooled heap ByteBuffer, which the returned stream reads from and hands back to
+the pool when closed. This saves the per-chunk array allocation, not the copy.
+
+The header mapping is unmapped when the file is closed (see unmap), as a mapped
+file cannot be replaced or deleted on Windows, which compact() needs to do.
+*/
+
+public class MappedRegionFile extends RegionFile {
+
+    private static final int HEADER_SIZE = 8192;
+
+    private FileChannel channel = null;
+    private MappedByteBuffer header = null;
+
+    // pool of heap buffers shared by all region files.
+    // heap (rather than direct) buffers are used as Inflater needs a byte array.
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+
+    public MappedRegionFile(File file) {
+        super(file);
+    }
+
+    private static ByteBuffer acquireBuffer(int size) {
+        synchronized (bufferPool) {
+            for (int i = bufferPool.size(); i > 0; i--) {
+                ByteBuffer buf = bufferPool.poll();
+                if (buf.capacity() >= size) {
+                    buf.clear();
+                    buf.limit(size);
+                    return buf;
+                }
+                bufferPool.add(buf);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(size - 1) << 1));
+        buf.limit(size);
+        return buf;
+    }
+
+    private static void releaseBuffer(ByteBuffer buf) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.add(buf);
+            }
+        }
+    }
+
+    // input stream reading from a pooled buffer, the buffer is returned
+    // to the pool when the stream is closed.
+    private static class PooledBufferInputStream extends InputStream {
+        private ByteBuffer buf;
+
+        PooledBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return ((this.buf != null) && this.buf.hasRemaining()) ? (this.buf.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if ((this.buf == null) || !this.buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, this.buf.remaining());
+            this.buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return (this.buf != null) ? this.buf.remaining() : 0;
+        }
+
+        @Override
+        public void close() {
+            if (this.buf != null) {
+                releaseBuffer(this.buf);
+                this.buf = null;
+            }
+        }
+    }
+
+    private void mapHeader() throws IOException {
+        if (this.header == null) {
+            this.channel = this.fin.getChannel();
+            this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = this.channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of region file " + this.file);
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += this.channel.write(buf, position);
+        }
+    }
+
+    @Override
+    protected void initHeader() throws IOException {
+        this.mapHeader();
+        for (int i = 0; i < HEADER_SIZE; i += 8) {
+            this.header.putLong(i, 0L);
+        }
+    }
+
+    @Override
+    protected void readHeader(int[] locations, int[] timestamps) throws IOException {
+        this.mapHeader();
+        IntBuffer ints = this.header.asIntBuffer();
+        ints.get(locations, 0, 1024);
+        ints.get(timestamps, 0, 1024);
+    }
+
+    @Override
+    protected void writeHeaderEntry(int index, int value) throws IOException {
+        this.mapHeader();
+        this.header.putInt(index * 4, value);
+    }
+
+    @Override
+    protected void writeHeaderEntries(int index, int[] values) throws IOException {
+        this.mapHeader();
+        IntBuffer ints = this.header.asIntBuffer();
+        ints.position(index);
+        ints.put(values);
+    }
+
+    @Override
+    protected InputStream readCompressedChunkData(Section section, int x, int z) throws IOException {
+        this.mapHeader();
+        long offset = ((long) section.startSector) * 4096L;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(5);
+        this.readFully(chunkHeader, offset);
+        int length = chunkHeader.getInt(0);
+        byte version = chunkHeader.get(4);
+        InputStream in = null;
+        if (isChunkHeaderValid(section, length, version, x, z)) {
+            ByteBuffer buf = acquireBuffer(length - 1);
+            try {
+                this.readFully(buf, offset + 5);
+            } catch (IOException e) {
+                releaseBuffer(buf);
+                throw e;
+            }
+            buf.flip();
+            in = new PooledBufferInputStream(buf);
+        }
+        return in;
+    }
+
+    @Override
+    protected void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException {
+        this.mapHeader();
+        long offset = ((long) section.startSector) * 4096L;
+        // write version and length
+        ByteBuffer chunkHeader = ByteBuffer.allocate(5);
+        chunkHeader.putInt(length + 1);
+        chunkHeader.put((byte) 2);
+        chunkHeader.flip();
+        this.writeFully(chunkHeader, offset);
+        // write compressed data
+        this.writeFully(ByteBuffer.wrap(compressedChunkData, 0, length), offset + 5);
+    }
+
+    // release a mapping now rather than when the buffer is garbage collected.
+    // there is no public API for this, so use the JDK internal cleaner:
+    // Unsafe.invokeCleaner on java 9+, or DirectBuffer.cleaner().clean() on java 8.
+    // the buffer must not be accessed afterwards.
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+            return;
+        } catch (NoSuchMethodException e) {
+            // java 8, fall through
+        } catch (Exception e) {
+            RegionManager.logWarning("could not unmap region file header: %s", e);
+            return;
+        }
+        try {
+            Method cleanerMethod = buf.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buf);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            RegionManager.logWarning("could not unmap region file header: %s", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.header != null) {
+            this.header.force();
+            unmap(this.header);
+            this.header = null;
+        }
+        this.channel = null;
+        super.close();
+    }
+}
@@ -21,9 +21,11 @@ public class MergeToImage {
 
                 // get region pixels
                 Region region = regionManager.getRegion(x + xi, z + zi, 0, dimension);
-                int[] regionPixels = region.surfacePixels.getPixels();
-                if (regionPixels != null) {
-                    mergedImage.setRGB(xi, zi, Region.SIZE, Region.SIZE, regionPixels, 0, Region.SIZE);
+                synchronized (region.surfacePixels) {
+                    int[] regionPixels = region.surfacePixels.getPixels();
+                    if (regionPixels != null) {
+                        mergedImage.setRGB(xi, zi, Region.SIZE, Region.SIZE, regionPixels, 0, Region.SIZE);
+                    }
                 }
             }
         }
@@ -13,13 +13,17 @@ import net.minecraft.nbt.NBTTagList;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.world.ChunkPosition;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.InflaterInputStream;
 
 public class MwChunk implements IChunk {
     public static final int SIZE = 16;
@@ -39,6 +43,20 @@ public class MwChunk implements IChunk {
     public final Map<ChunkPosition, TileEntity> tileEntityMap;
 
     public final int maxY;
+    // y of the highest non-air block in each column, indexed by (z << 4) | x.
+    // computed on first use.
+    private byte[] heightMap = null;
+
+    // blocks to render in place of the stored block, taken from the tile entities
+    // of the chunk when it is created. null if there are none.
+    // overrideColumns flags the columns (indexed by (z << 4) | x) that have any
+    // overrides, overrideKeys holds the (column << 8) | y of each override.
+    // an override id of 0 keeps the stored block id, a meta of -1 keeps the stored
+    // metadata.
+    private boolean[] overrideColumns = null;
+    private int[] overrideKeys;
+    private int[] overrideIds;
+    private int[] overrideMetas;
 
     public MwChunk(int x, int z, int dimension, BlockStorage blockStorage, BiomeStorage biomeStorage,
                    byte[][] lightingArray, Map<ChunkPosition, TileEntity> tileEntityMap) {
@@ -56,6 +74,7 @@ public class MwChunk implements IChunk {
             }
         }
         this.maxY = maxY;
+        this.resolveTileEntityOverrides();
     }
 
     public String toString() {
@@ -66,11 +85,6 @@ public class MwChunk implements IChunk {
     public static MwChunk read(int x, int z, int dimension,
                                RegionFileCache regionFileCache) {
 
-        BiomeStorage biomes = null;
-        BlockStorage blocks = null;
-        byte[][] lightingArray = new byte[16][];
-        Map<ChunkPosition, TileEntity> TileEntityMap = new HashMap<>();
-
         DataInputStream dis = null;
         RegionFile regionFile = regionFileCache.getRegionFile(x << 4, z << 4,
                 dimension);
@@ -84,6 +98,32 @@ public class MwChunk implements IChunk {
             dis = regionFile.getChunkDataInputStream(x & 31, z & 31);
         }
 
+        return read(x, z, dimension, dis);
+    }
+
+    // load from compressed chunk data read from an anvil file, inflating with
+    // the Inflater of the calling thread (see ChunkCompressor).
+    public static MwChunk read(int x, int z, int dimension,
+                               RegionFile.CompressedChunk compressedChunk) {
+        DataInputStream dis = null;
+        if (compressedChunk != null) {
+            dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(compressedChunk.getBuffer(), 0, compressedChunk.size()),
+                    ChunkCompressor.getInflater()
+            )));
+        }
+        return read(x, z, dimension, dis);
+    }
+
+    // load from an NBT input stream, closing the stream.
+    // returns an empty chunk if dis is null.
+    private static MwChunk read(int x, int z, int dimension, DataInputStream dis) {
+
+        BiomeStorage biomes = null;
+        BlockStorage blocks = null;
+        byte[][] lightingArray = new byte[16][];
+        Map<ChunkPosition, TileEntity> TileEntityMap = new HashMap<>();
+
         if (dis != null) {
             try {
 
@@ -165,7 +205,7 @@ public class MwChunk implements IChunk {
     public int getBiome(int x, int z) {
         if (this.biomeStorage == null)
             return 0;
-        return biomeStorage.biomeAt((z & 0xF) << 4);
+        return biomeStorage.biomeAt(((z & 0xF) << 4) | (x & 0xF));
     }
 
     public int getLightValue(int x, int y, int z) {
@@ -183,6 +223,78 @@ public class MwChunk implements IChunk {
         return this.maxY;
     }
 
+    @Override
+    public int getHeight(int x, int z) {
+        if (this.heightMap == null) {
+            this.heightMap = this.computeHeightMap();
+        }
+        return this.heightMap[((z & 0xf) << 4) | (x & 0xf)] & 0xff;
+    }
+
+    // find the highest non-air block of each column by checking the block ids
+    // downwards from maxY, skipping empty sections entirely.
+    private byte[] computeHeightMap() {
+        byte[] heights = new byte[256];
+        if (this.blockStorage == null) {
+            return heights;
+        }
+        for (int column = 0; column < 256; column++) {
+            int y = this.maxY;
+            while (y > 0) {
+                int yi = y >> 4;
+                if (!this.blockStorage.hasSubChunk(yi)) {
+                    y = (yi << 4) - 1;
+                } else if (this.blockStorage.idAt(yi, ((y & 0xf) << 8) | column) != 0) {
+                    break;
+                } else {
+                    y--;
+                }
+            }
+            heights[column] = (byte) Math.max(y, 0);
+        }
+        return heights;
+    }
+
+    // fill ids and metas with the block id and metadata of every block in the
+    // section yi, indexed by ((y & 0xf) << 8) | ((z & 0xf) << 4) | (x & 0xf), with
+    // the tile entity overrides applied.
+    // returns false without filling the arrays if the section has no blocks and
+    // no overrides.
+    public boolean getSectionBlocks(int yi, int[] ids, int[] metas) {
+        boolean hasBlocks = (this.blockStorage != null) && this.blockStorage.hasSubChunk(yi);
+        if (hasBlocks) {
+            this.blockStorage.unpack(yi, ids, metas);
+        }
+        if (this.overrideColumns != null) {
+            for (int i = 0; i < this.overrideKeys.length; i++) {
+                int y = this.overrideKeys[i] & 0xff;
+                if ((y >> 4) == yi) {
+                    if (!hasBlocks) {
+                        Arrays.fill(ids, 0, 4096, 0);
+                        Arrays.fill(metas, 0, 4096, 0);
+                        hasBlocks = true;
+                    }
+                    int offset = ((y & 0xf) << 8) | (this.overrideKeys[i] >> 8);
+                    if (this.overrideIds[i] != 0) {
+                        ids[offset] = this.overrideIds[i];
+                    }
+                    if (this.overrideMetas[i] != -1) {
+                        metas[offset] = this.overrideMetas[i];
+                    }
+                }
+            }
+        }
+        return hasBlocks;
+    }
+
+    // return the block arrays of a chunk copied by ChunkManager.copyToMwChunk to the
+    // SectionArrayPool. the chunk must not be used afterwards.
+    public void release() {
+        if (this.blockStorage != null) {
+            this.blockStorage.release();
+        }
+    }
+
     private static java.lang.reflect.Method CarpenterMethod = null;
 
     public static void carpenterData() {
@@ -218,50 +330,100 @@ public class MwChunk implements IChunk {
         }
     }
 
+    // get the block to render in place of a tile entity's block
+    // (forgemultipart and carpenterblocks both save the block to be
+    // rendered in the tileentity).
+    // returns the block id (0 to keep the stored block id) in the low 32 bits and
+    // the metadata (-1 to keep the stored metadata) in the high 32 bits.
+    public static long getTileEntityOverride(TileEntity value) {
+        int id = 0;
+        int meta = -1;
+
+        // Get the Block from the carpenter TileEntity
+        if (CarpenterMethod != null) {
+            try {
+                ItemStack itemStack = (ItemStack) CarpenterMethod.invoke(
+                        value, (byte) 6);
+                if (itemStack != null) {
+                    ItemBlock itemBlock = (ItemBlock) itemStack.getItem();
+                    id = Block.getIdFromBlock(itemBlock.field_150939_a);
+                    meta = itemStack.getItemDamage();
+                }
+            } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException ignored) {
+            }
+        }
+        if (FMPMethodParts != null) {
+            try {
+                //noinspection rawtypes
+                for (Object temp : (List) FMPMethodParts.invoke(value)) {
+                    Object material = FMPMethodMaterial.invoke(temp);
+                    Block block = (Block) FMPFieldBlock.get(material);
+                    id = Block.getIdFromBlock(block);
+                    meta = (Integer) FMPFieldMeta.get(material);
+                }
+            } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException ignored) {
+            }
+        }
+        return (((long) meta) << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    // resolve the block overrides of all tile entities once, so that
+    // getBlockAndMetadataPacked does not need to look up tile entities or call
+    // the mod methods for every block.
+    private void resolveTileEntityOverrides() {
+        if (this.tileEntityMap.isEmpty() || ((CarpenterMethod == null) && (FMPMethodParts == null))) {
+            return;
+        }
+        int count = 0;
+        int[] keys = new int[this.tileEntityMap.size()];
+        int[] ids = new int[keys.length];
+        int[] metas = new int[keys.length];
+        for (Map.Entry<ChunkPosition, TileEntity> entry : this.tileEntityMap.entrySet()) {
+            long override = getTileEntityOverride(entry.getValue());
+            int id = (int) override;
+            int meta = (int) (override >> 32);
+            if ((id != 0) || (meta != -1)) {
+                // tile entities read from region files are keyed by world coordinates
+                ChunkPosition pos = entry.getKey();
+                int column = ((pos.chunkPosZ & 0xf) << 4) | (pos.chunkPosX & 0xf);
+                keys[count] = (column << 8) | (pos.chunkPosY & 0xff);
+                ids[count] = id;
+                metas[count] = meta;
+                count++;
+            }
+        }
+        if (count > 0) {
+            this.overrideColumns = new boolean[256];
+            for (int i = 0; i < count; i++) {
+                this.overrideColumns[keys[i] >> 8] = true;
+            }
+            this.overrideKeys = Arrays.copyOf(keys, count);
+            this.overrideIds = Arrays.copyOf(ids, count);
+            this.overrideMetas = Arrays.copyOf(metas, count);
+        }
+    }
+
     public long getBlockAndMetadataPacked(int x, int y, int z) {
         int yi = (y >> 4) & 0xf;
         int offset = ((y & 0xf) << 8) | ((z & 0xf) << 4) | (x & 0xf);
-        ChunkPosition chunkposition = new ChunkPosition(x, y, z);
         int blockID = blockStorage.idAt(yi, offset);
         int meta = blockStorage.metaAt(yi, offset);
 
-        // check if the block has a tileentity if so use the blockdata in the
-        // tileentity
-        // (forgemultipart and carpenterblocks both save the block to be
-        // rendered in the tileentity map)
-
-        if (this.tileEntityMap.containsKey(chunkposition)) {
-            TileEntity value = this.tileEntityMap.get(chunkposition);
-            int id = 0;
-
-            // Get the Block from the carpenter TileEntity
-            if (CarpenterMethod != null) {
-                try {
-                    ItemStack itemStack = (ItemStack) CarpenterMethod.invoke(
-                            value, (byte) 6);
-                    if (itemStack != null) {
-                        ItemBlock itemBlock = (ItemBlock) itemStack.getItem();
-                        id = Block.getIdFromBlock(itemBlock.field_150939_a);
-                        meta = itemStack.getItemDamage();
+        // use the block of the tile entity at this position if it has one
+        int column = offset & 0xff;
+        if ((this.overrideColumns != null) && this.overrideColumns[column]) {
+            int key = (column << 8) | (y & 0xff);
+            for (int i = 0; i < this.overrideKeys.length; i++) {
+                if (this.overrideKeys[i] == key) {
+                    if (this.overrideIds[i] != 0) {
+                        blockID = this.overrideIds[i];
                     }
-                } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException ignored) {
-                }
-            }
-            if (FMPMethodParts != null) {
-                try {
-                    //noinspection rawtypes
-                    for (Object temp : (List) FMPMethodParts.invoke(value)) {
-                        Object material = FMPMethodMaterial.invoke(temp);
-                        Block block = (Block) FMPFieldBlock.get(material);
-                        id = Block.getIdFromBlock(block);
-                        meta = (Integer) FMPFieldMeta.get(material);
+                    if (this.overrideMetas[i] != -1) {
+                        meta = this.overrideMetas[i];
                     }
-                } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException ignored) {
+                    break;
                 }
             }
-            if (id != 0) {
-                blockID = id;
-            }
         }
 
         return ((meta & 0xFFFFFFFFL) << 32) | (blockID & 0xFFFFFFFFL);
@@ -300,6 +462,30 @@ public class MwChunk implements IChunk {
         return nbttagcompound;
     }
 
+    // serialise the chunk to NBT and deflate it in memory, ready to be written
+    // to a region file with RegionFile.writeCompressedChunks.
+    // uses the Deflater of the calling thread (see ChunkCompressor).
+    // returns null on error.
+    public synchronized RegionFile.CompressedChunk compress() {
+        RegionFile.CompressedChunk compressedChunk = new RegionFile.CompressedChunk(this.x, this.z);
+        DataOutputStream dos = compressedChunk.getOutputStream(ChunkCompressor.getDeflater());
+        boolean error = false;
+        try {
+            CompressedStreamTools.write(writeChunkToNBT(), dos);
+        } catch (IOException e) {
+            RegionManager.logError("%s: could not compress chunk (%d, %d)", e, this.x, this.z);
+            error = true;
+        } finally {
+            try {
+                dos.close();
+            } catch (IOException e) {
+                RegionManager.logError("%s while closing chunk data output stream", e);
+                error = true;
+            }
+        }
+        return error ? null : compressedChunk;
+    }
+
     public synchronized boolean write(RegionFileCache regionFileCache) {
         boolean error = false;
         RegionFile regionFile = regionFileCache.getRegionFile(this.x << 4,
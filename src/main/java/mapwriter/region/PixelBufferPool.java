@@ -0,0 +1,51 @@
+package mapwriter.region;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+Pool of recycled region pixel arrays.
+
+Every loaded region holds a 1 MiB pixel array. Allocating a new one each time a
+region is loaded and dropping it each time a region is evicted creates a steady
+stream of large short lived arrays, which end up being collected in the old
+generation. Instead arrays released by closed regions are kept here (up to
+MAX_POOLED_BUFFERS of them) and handed out to regions being loaded.
+
+An array must only be released once nothing else can still be using it. Region
+pixels are only accessed while holding the lock on the SurfacePixels that owns them,
+which is also held when they are released.
+*/
+
+public class PixelBufferPool {
+
+    public static final int BUFFER_SIZE = Region.SIZE * Region.SIZE;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ArrayDeque<int[]> pool = new ArrayDeque<>();
+
+    // get an array of BUFFER_SIZE pixels, all set to 0 if clear is true
+    // or with undefined contents otherwise.
+    public static int[] acquire(boolean clear) {
+        int[] pixels;
+        synchronized (pool) {
+            pixels = pool.poll();
+        }
+        if (pixels == null) {
+            pixels = new int[BUFFER_SIZE];
+        } else if (clear) {
+            Arrays.fill(pixels, 0);
+        }
+        return pixels;
+    }
+
+    public static void release(int[] pixels) {
+        if ((pixels != null) && (pixels.length == BUFFER_SIZE)) {
+            synchronized (pool) {
+                if (pool.size() < MAX_POOLED_BUFFERS) {
+                    pool.add(pixels);
+                }
+            }
+        }
+    }
+}
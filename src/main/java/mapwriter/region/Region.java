@@ -35,8 +35,7 @@ public class Region {
 
         this.key = getKey(this.x, this.z, this.zoomLevel, this.dimension);
 
-        File surfaceImageFile = this.getImageFile();
-        this.surfacePixels = new SurfacePixels(this, surfaceImageFile);
+        this.surfacePixels = new SurfacePixels(this);
     }
 
     public void close() {
@@ -58,20 +57,41 @@ public class Region {
         return dir;
     }
 
-    public File getImageFile() {
+    private File getZoomLevelFile(String extension) {
         File dimDir = addDimensionDirToPath(this.regionManager.imageDir, this.dimension);
         File zoomDir = new File(dimDir, "z" + this.zoomLevel);
 
         zoomDir.mkdirs();
 
-        String filename = String.format("%d.%d.png",
+        String filename = String.format("%d.%d.%s",
                 this.x >> (Region.SHIFT + this.zoomLevel),
-                this.z >> (Region.SHIFT + this.zoomLevel)
+                this.z >> (Region.SHIFT + this.zoomLevel),
+                extension
         );
 
         return new File(zoomDir, filename);
     }
 
+    // the region pixels, in the format written by SurfacePixels.saveTileFile
+    public File getImageFile() {
+        return this.getZoomLevelFile("mwt");
+    }
+
+    // PNG region image written by earlier versions, only ever read
+    public File getPngImageFile() {
+        return this.getZoomLevelFile("png");
+    }
+
+    // the tiles updated since the image was last written in full (see SurfacePixels)
+    public File getDeltaFile() {
+        return this.getZoomLevelFile("delta");
+    }
+
+    // the render manifest of the image, only zoom level 0 regions have one
+    public File getManifestFile() {
+        return (this.zoomLevel == 0) ? this.getZoomLevelFile("chunks") : null;
+    }
+
     public boolean equals(int x, int z, int zoomLevel, int dimension) {
         x &= -this.size;
         z &= -this.size;
@@ -106,6 +126,11 @@ public class Region {
                 ((x >> this.zoomLevel) & (Region.SIZE - 1));
     }
 
+    // approximate heap memory used by the region
+    public long getMemoryUsage() {
+        return this.surfacePixels.getMemoryUsage();
+    }
+
     public int[] getPixels() {
         return this.surfacePixels.getPixels();
     }
@@ -122,12 +147,18 @@ public class Region {
     // returns the region the scaled pixels were written to, or null
     // on failure.
     public Region updateNextZoomLevel(int x, int z, int w, int h) {
-        int[] srcPixels = this.surfacePixels.getPixels();
-        Region dstRegion = null;
-        if (srcPixels != null) {
-            int dstZoomLevel = this.zoomLevel + 1;
-            if (dstZoomLevel <= this.regionManager.maxZoom) {
-                dstRegion = this.regionManager.getRegion(x, z, dstZoomLevel, this.dimension);
+        int dstZoomLevel = this.zoomLevel + 1;
+        if (dstZoomLevel > this.regionManager.maxZoom) {
+            return null;
+        }
+        // get the destination region before locking the source pixels, as getting it
+        // may evict and close other regions.
+        // the source pixels are locked while scaling so they can not be recycled, the
+        // lock order is always from the lower to the higher zoom level.
+        Region dstRegion = this.regionManager.getRegion(x, z, dstZoomLevel, this.dimension);
+        synchronized (this.surfacePixels) {
+            int[] srcPixels = this.surfacePixels.getPixels();
+            if (srcPixels != null) {
                 int dstW = Math.max(1, (w >> dstRegion.zoomLevel));
                 int dstH = Math.max(1, (h >> dstRegion.zoomLevel));
 
@@ -140,6 +171,8 @@ public class Region {
                 int dstZ = (z >> dstRegion.zoomLevel) & (Region.SIZE - 1);
 
                 dstRegion.surfacePixels.updateScaled(srcPixels, srcX, srcZ, dstX, dstZ, dstW, dstH);
+            } else {
+                dstRegion = null;
             }
         }
 
@@ -7,10 +7,17 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -18,19 +25,23 @@ import java.util.zip.InflaterInputStream;
 Anvil region file reader/writer implementation.
 This code is very similar to RegionFile and RegionFileChunkBuffer from Minecraft.
 Not sure if it would have been better just to use the Minecraft code.
+
+All file access goes through RandomAccessFile seek/read/write calls.
+The protected header and chunk data methods can be overridden to use a different
+I/O backend (see MappedRegionFile), the sector allocation is shared.
 */
 
 public class RegionFile {
 
-    private final File file;
+    protected final File file;
     private int lengthInSectors = 0;
-    private RandomAccessFile fin = null;
+    protected RandomAccessFile fin = null;
 
     private final Section[] chunkSectionsArray = new Section[4096];
     private final int[] timestampArray = new int[4096];
-    private List<Boolean> filledSectorArray = null;
+    private final SectorAllocator sectorAllocator = new SectorAllocator();
 
-    private static class Section {
+    static class Section {
         final int startSector;
         final int length;
 
@@ -60,129 +71,153 @@ public class RegionFile {
         return this.file.isFile();
     }
 
-    public boolean isOpen() {
+    public synchronized boolean isOpen() {
         return (this.fin != null);
     }
 
-    // set the corresponding bits in filledSectorArray to 'filled'
-    // for 'count' sectors, starting at 'firstSector'.
-    private void setFilledSectorArray(Section section, boolean filled) {
-        int endSector = section.startSector + section.length;
-        int sectorsToAppend = endSector + 1 - this.filledSectorArray.size();
-        for (int i = 0; i < sectorsToAppend; i++) {
-            this.filledSectorArray.add(Boolean.FALSE);
-        }
-        for (int i = section.startSector; i < endSector; i++) {
-            if (filled && this.filledSectorArray.get(i)) {
-                RegionManager.logError("sector %d already filled, possible chunk overlap", i);
-            }
-            this.filledSectorArray.set(i, filled);
-        }
+    // set the sectors a section occupies to filled or free
+    private void setFilledSectors(Section section, boolean filled) {
+        this.sectorAllocator.setFilled(section.startSector, section.length, filled);
     }
 
     private boolean checkSectionOverlaps(Section section) {
-        // get end sector, limiting to length of the filled sector array as all sectors past the
-        // end of the file are assumed free.
-        int endSector = Math.min(section.startSector + section.length, this.filledSectorArray.size());
-        boolean overlaps = false;
-        for (int i = section.startSector; i < endSector; i++) {
-            if (this.filledSectorArray.get(i)) {
-                overlaps = true;
-                break;
-            }
-        }
-        return overlaps;
+        return this.sectorAllocator.overlaps(section.startSector, section.length);
     }
 
+    // the idea is to use an empty block of exactly the required length (or the
+    // closest length above it) rather than one that is larger, appending to the
+    // end of the file if there is no empty block large enough.
     private Section getFreeSection(int requiredLength) {
-        int start = 0;
-        int length = 0;
-        int closestStart = 0;
-        int closestLength = Integer.MAX_VALUE;
-        // start at 2 to skip headers
-        int i;
-        for (i = 2; i < this.filledSectorArray.size(); i++) {
-            if (this.filledSectorArray.get(i)) {
-                // sector filled
-                // if the length of the empty block we found is greater than or
-                // equal to the required length, and is closer to the required
-                // length than the previous found length, then set this as the
-                // new closest length.
-                // the idea is to use an empty block of exactly the required
-                // length, rather than one that is larger.
-                if ((length >= requiredLength) && (length < closestLength)) {
-                    closestLength = length;
-                    closestStart = start;
-                    // if we find an empty block of exactly the correct length
-                    // then exit the loop.
-                    if (closestLength == requiredLength) {
-                        break;
-                    }
-                }
-                length = 0;
-            } else {
-                // sector empty
-                if (length == 0) {
-                    start = i;
-                }
-                length++;
-            }
-        }
+        return new Section(this.sectorAllocator.findFree(requiredLength), requiredLength);
+    }
 
-        if (closestStart <= 0) {
-            // append to end of file
-            closestStart = i;
-        }
+    public synchronized int getFreeSectorCount() {
+        return this.sectorAllocator.getFreeCount();
+    }
 
-        return new Section(closestStart, requiredLength);
+    public synchronized int getFilledSectorCount() {
+        return this.sectorAllocator.getFilledCount();
     }
 
     public void printInfo() {
-        int freeCount = 0;
-        int filledCount = 0;
-        // start at 2 to skip headers
-        for (int i = 2; i < this.filledSectorArray.size(); i++) {
-            if (this.filledSectorArray.get(i)) {
-                filledCount++;
-            } else {
-                freeCount++;
-            }
-        }
-        RegionManager.logInfo("Region File %s: filled sectors = %d, free sectors = %d", this, filledCount, freeCount);
+        RegionManager.logInfo("Region File %s: filled sectors = %d, free sectors = %d", this,
+                this.sectorAllocator.getFilledCount(), this.sectorAllocator.getFreeCount());
 
-        String s = "";
-        int i;
-        for (i = 0; i < this.filledSectorArray.size(); i++) {
+        int endSector = this.sectorAllocator.getEndSector();
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < endSector; i++) {
             if ((i & 31) == 0) {
-                s = String.format("%04x:", i);
+                s.setLength(0);
+                s.append(String.format("%04x:", i));
             }
-            s += this.filledSectorArray.get(i) ? '1' : '0';
+            s.append(this.sectorAllocator.isFilled(i) ? '1' : '0');
             if ((i & 31) == 31) {
                 RegionManager.logInfo("%s", s);
             }
         }
-        if ((i & 31) != 31) {
+        if ((endSector & 31) != 0) {
             RegionManager.logInfo("%s", s);
         }
     }
 
+    private void writeChunkLocations() throws IOException {
+        int[] locations = new int[1024];
+        for (int i = 0; i < 1024; i++) {
+            Section section = this.chunkSectionsArray[i];
+            locations[i] = ((section != null) && (section.length > 0)) ? section.getSectorAndSize() : 0;
+        }
+        this.writeHeaderEntries(0, locations);
+    }
+
     private Section getChunkSection(int x, int z) {
         return this.chunkSectionsArray[((z & 31) << 5) | (x & 31)];
     }
 
     private void updateChunkSection(int x, int z, Section newSection) throws IOException {
         int chunkIndex = ((z & 31) << 5) | (x & 31);
-        this.fin.seek(chunkIndex * 4);
         if ((newSection != null) && (newSection.length > 0)) {
-            this.fin.writeInt(newSection.getSectorAndSize());
+            this.writeHeaderEntry(chunkIndex, newSection.getSectorAndSize());
         } else {
-            this.fin.writeInt(0);
+            this.writeHeaderEntry(chunkIndex, 0);
         }
 
         this.chunkSectionsArray[chunkIndex] = newSection;
     }
 
-    public boolean open() {
+    //
+    // I/O backend methods, only called while fin is open.
+    //
+
+    // fill chunk and timestamp tables of a new file with 0's
+    protected void initHeader() throws IOException {
+        this.fin.seek(0);
+        for (int i = 0; i < 2048; i++) {
+            this.fin.writeInt(0);
+        }
+    }
+
+    // write consecutive int entries of the header, starting at entry index
+    protected void writeHeaderEntries(int index, int[] values) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+        buf.asIntBuffer().put(values);
+        this.fin.seek(index * 4);
+        this.fin.write(buf.array());
+    }
+
+    // read the 1024 chunk location entries followed by the 1024 timestamps
+    protected void readHeader(int[] locations, int[] timestamps) throws IOException {
+        this.fin.seek(0);
+        for (int i = 0; i < 1024; i++) {
+            locations[i] = this.fin.readInt();
+        }
+        for (int i = 0; i < 1024; i++) {
+            timestamps[i] = this.fin.readInt();
+        }
+    }
+
+    // write a single int entry of the header.
+    // entries 0 to 1023 are chunk locations, 1024 to 2047 are timestamps.
+    protected void writeHeaderEntry(int index, int value) throws IOException {
+        this.fin.seek(index * 4);
+        this.fin.writeInt(value);
+    }
+
+    // get a stream of the compressed data stored in a section, or null if the
+    // chunk header is invalid.
+    protected InputStream readCompressedChunkData(Section section, int x, int z) throws IOException {
+        // read length of following data (includes version byte) and compressed data version byte
+        this.fin.seek(((long) section.startSector) * 4096L);
+        int length = this.fin.readInt();
+        byte version = this.fin.readByte();
+        InputStream in = null;
+        if (isChunkHeaderValid(section, length, version, x, z)) {
+            // read the compressed data
+            byte[] compressedChunkData = new byte[length - 1];
+            this.fin.read(compressedChunkData);
+            in = new ByteArrayInputStream(compressedChunkData);
+        }
+        return in;
+    }
+
+    protected static boolean isChunkHeaderValid(Section section, int length, byte version, int x, int z) {
+        // version 1 = gzip compressed, version 2 = zlib/inflater compressed
+        boolean valid = (length > 1) && ((length + 4) <= (section.length * 4096)) && (version == 2);
+        if (!valid) {
+            RegionManager.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+        }
+        return valid;
+    }
+
+    protected void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException {
+        this.fin.seek(((long) section.startSector) * 4096L);
+        // write version and length
+        this.fin.writeInt(length + 1);
+        this.fin.writeByte(2);
+        // write compressed data
+        this.fin.write(compressedChunkData, 0, length);
+    }
+
+    public synchronized boolean open() {
         File dir = this.file.getParentFile();
         if (dir.exists()) {
             if (!dir.isDirectory()) {
@@ -198,45 +233,38 @@ public class RegionFile {
         try {
             this.fin = new RandomAccessFile(this.file, "rw");
 
-            // seek to start
-            this.fin.seek(0);
-
             this.lengthInSectors = (int) ((this.fin.length() + 4095L) / 4096L);
 
-            this.filledSectorArray = new ArrayList<>();
+            this.sectorAllocator.clear();
 
             Arrays.fill(this.chunkSectionsArray, null);
             Arrays.fill(this.timestampArray, 0);
 
             if (this.lengthInSectors < 3) {
                 // no chunk data
-                // fill chunk and timestamp tables with 0's
-                for (int i = 0; i < 2048; i++) {
-                    this.fin.writeInt(0);
-                }
+                this.initHeader();
             } else {
+                int[] locations = new int[1024];
+                this.readHeader(locations, this.timestampArray);
                 // add a section for each chunk
                 for (int i = 0; i < 1024; i++) {
-                    Section section = new Section(this.fin.readInt());
+                    Section section = new Section(locations[i]);
                     if (section.length > 0) {
                         // make sure chunk does not overlap another
                         if (!checkSectionOverlaps(section)) {
                             this.chunkSectionsArray[i] = section;
-                            this.setFilledSectorArray(section, true);
+                            this.setFilledSectors(section, true);
                         } else {
                             RegionManager.logError("chunk %d overlaps another chunk, file may be corrupt", i);
                         }
                     }
                 }
-                for (int i = 0; i < 1024; i++) {
-                    this.timestampArray[i] = this.fin.readInt();
-                }
             }
 
             //this.printInfo();
 
         } catch (Exception e) {
-            this.fin = null;
+            this.close();
             RegionManager.logError("exception when opening region file '%s': %s", this.file, e);
 
         }
@@ -244,35 +272,26 @@ public class RegionFile {
         return this.fin == null;
     }
 
-    public void close() {
+    public synchronized void close() {
         if (this.fin != null) {
             try {
                 this.fin.close();
             } catch (IOException ignored) {
             }
+            this.fin = null;
         }
     }
 
-    public DataInputStream getChunkDataInputStream(int x, int z) {
+    public synchronized DataInputStream getChunkDataInputStream(int x, int z) {
         DataInputStream dis = null;
         if (this.fin != null) {
             Section section = getChunkSection(x, z);
             if ((section != null) && (section.length > 0)) {
-                int offset = section.startSector * 4096;
                 try {
-                    // read length of following data (includes version byte) and compressed data version byte
-                    this.fin.seek(offset);
-                    int length = this.fin.readInt();
-                    byte version = this.fin.readByte();
-                    // version 1 = gzip compressed, version 2 = zlib/inflater compressed
-                    if ((length > 1) && ((length + 4) < (section.length * 4096)) && (version == 2)) {
-                        // read the compressed data
-                        byte[] compressedChunkData = new byte[length - 1];
-                        this.fin.read(compressedChunkData);
+                    InputStream in = this.readCompressedChunkData(section, x, z);
+                    if (in != null) {
                         // create a buffered inflater stream on the compressed data
-                        dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressedChunkData))));
-                    } else {
-                        RegionManager.logError("data length (%d) or version (%d) invalid for chunk (%d, %d)", length, version, x, z);
+                        dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
                     }
                 } catch (Exception e) {
                     RegionManager.logError("exception while reading chunk (%d, %d): %s", x, z, e);
@@ -282,27 +301,177 @@ public class RegionFile {
         return dis;
     }
 
+    private CompressedChunk readCompressedChunk(Section section, int x, int z) throws IOException {
+        CompressedChunk chunk = null;
+        InputStream in = this.readCompressedChunkData(section, x, z);
+        if (in != null) {
+            try {
+                chunk = new CompressedChunk(x, z);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    chunk.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return chunk;
+    }
+
+    // get the last modified time (in seconds) of every chunk in the file, indexed by
+    // (z << 5) | x. the entries for chunks not in the file are 0.
+    public synchronized int[] getChunkTimestamps() {
+        int[] timestamps = new int[1024];
+        for (int i = 0; i < 1024; i++) {
+            Section section = this.chunkSectionsArray[i];
+            if ((section != null) && (section.length > 0)) {
+                timestamps[i] = this.timestampArray[i];
+            }
+        }
+        return timestamps;
+    }
+
+    // read the compressed data of every chunk in the file, indexed by (z << 5) | x.
+    // the chunks are read in file order, entries for missing or invalid chunks are null.
+    public synchronized CompressedChunk[] readCompressedChunks() {
+        return this.readCompressedChunks(null);
+    }
+
+    // as above, but only reading the chunks with chunksToRead[(z << 5) | x] set
+    // (all chunks if chunksToRead is null).
+    public synchronized CompressedChunk[] readCompressedChunks(boolean[] chunksToRead) {
+        CompressedChunk[] chunks = new CompressedChunk[1024];
+        // reopen the file just for this read if the region file cache has
+        // closed it since it was opened (see writeCompressedChunks).
+        boolean reopened = false;
+        if ((this.fin == null) && this.exists()) {
+            reopened = !this.open();
+        }
+        if (this.fin != null) {
+            Integer[] order = new Integer[1024];
+            for (int i = 0; i < 1024; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> {
+                Section section = this.chunkSectionsArray[i];
+                return (section != null) ? section.startSector : 0;
+            }));
+            for (int i : order) {
+                Section section = this.chunkSectionsArray[i];
+                if ((section != null) && (section.length > 0) && ((chunksToRead == null) || chunksToRead[i])) {
+                    try {
+                        chunks[i] = this.readCompressedChunk(section, i & 31, i >> 5);
+                    } catch (IOException e) {
+                        RegionManager.logError("exception while reading chunk (%d, %d): %s", i & 31, i >> 5, e);
+                    }
+                }
+            }
+        }
+        if (reopened) {
+            this.close();
+        }
+        return chunks;
+    }
+
+    // rewrite the region file with every chunk stored contiguously in chunk index
+    // order, removing all free sectors between chunks.
+    // the compacted file is written next to the original and then moved over it.
+    // returns true on error.
+    public synchronized boolean compact() {
+        if (this.fin == null) {
+            return true;
+        }
+        RegionManager.logInfo("compacting region file %s (%d free sectors)", this, this.getFreeSectorCount());
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        RegionFile dst = new RegionFile(tmpFile);
+        boolean error = (tmpFile.exists() && !tmpFile.delete()) || dst.open();
+        if (!error) {
+            try {
+                List<CompressedChunk> chunks = new ArrayList<>();
+                for (int i = 0; i < 1024; i++) {
+                    Section section = this.chunkSectionsArray[i];
+                    if ((section != null) && (section.length > 0)) {
+                        CompressedChunk chunk = this.readCompressedChunk(section, i & 31, i >> 5);
+                        if (chunk != null) {
+                            chunks.add(chunk);
+                        }
+                    }
+                }
+                // the new file is empty so the chunks are appended in the order given.
+                // each chunk keeps the timestamp it had in the original file.
+                dst.writeCompressedChunks(chunks, Arrays.copyOf(this.timestampArray, 1024));
+            } catch (IOException e) {
+                RegionManager.logError("exception while compacting region file %s: %s", this, e);
+                error = true;
+            }
+        }
+        dst.close();
+
+        this.close();
+        if (!error) {
+            try {
+                Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                RegionManager.logError("could not replace region file %s with compacted file: %s", this, e);
+                error = true;
+            }
+        }
+        if (error) {
+            tmpFile.delete();
+        }
+        // reopen either the compacted or the original file
+        return this.open() || error;
+    }
+
+    // an in memory byte array holding the compressed data of a chunk,
+    // to be written to a region file by writeCompressedChunks.
+    public static class CompressedChunk extends ByteArrayOutputStream {
+        // chunk coordinates within the region (0 to 31)
+        public final int x;
+        public final int z;
+
+        public CompressedChunk(int x, int z) {
+            super(8096);
+            this.x = x & 31;
+            this.z = z & 31;
+        }
+
+        // the internal buffer, valid up to size()
+        byte[] getBuffer() {
+            return this.buf;
+        }
+
+        // wrap in a stream that deflates the data written to it
+        public DataOutputStream getOutputStream() {
+            return new DataOutputStream(new DeflaterOutputStream(this));
+        }
+
+        // as above using the given (reset) deflater, which is not ended when
+        // the stream is closed so that it can be reused.
+        public DataOutputStream getOutputStream(Deflater deflater) {
+            return new DataOutputStream(new DeflaterOutputStream(this, deflater, 8192));
+        }
+    }
+
     // basically an in memory byte array that writes its contents
     // to a file when it is closed.
-    private static class RegionFileChunkBuffer extends ByteArrayOutputStream {
-        private final int x;
-        private final int z;
+    private static class RegionFileChunkBuffer extends CompressedChunk {
         private final RegionFile regionFile;
 
         public RegionFileChunkBuffer(RegionFile regionFile, int x, int z) {
-            super(8096);
+            super(x, z);
             this.regionFile = regionFile;
-            this.x = x;
-            this.z = z;
         }
 
         public void close() {
-            this.regionFile.writeCompressedChunk(this.x, this.z, this.buf, this.count);
+            this.regionFile.writeCompressedChunks(Collections.singletonList(this));
         }
     }
 
     public DataOutputStream getChunkDataOutputStream(int x, int z) {
-        return new DataOutputStream(new DeflaterOutputStream(new RegionFileChunkBuffer(this, x, z)));
+        return new RegionFileChunkBuffer(this, x, z).getOutputStream();
     }
 	
 	/*private int padToSectorSize() throws IOException {
@@ -316,58 +485,151 @@ public class RegionFile {
 		return (int) (paddedLength / 4096);
 	}*/
 
-    private void writeChunkDataToSection(Section section, byte[] compressedChunkData, int length) throws IOException {
-        this.fin.seek(((long) section.startSector) * 4096L);
-        // write version and length
-        this.fin.writeInt(length + 1);
-        this.fin.writeByte(2);
-        // write compressed data
-        this.fin.write(compressedChunkData, 0, length);
-
-        int endSector = section.startSector + section.length;
-        if ((endSector + 1) > this.lengthInSectors) {
-            this.lengthInSectors = endSector + 1;
-        }
-    }
-
-    private void writeCompressedChunk(int x, int z, byte[] compressedChunkData, int length) {
+    // find and fill a section for a chunk of the given compressed length.
+    // the section the chunk currently occupies is left filled, so that it is not
+    // reused by another chunk before the header pointing at the new section has
+    // been written (see writeCompressedChunks).
+    private Section allocateChunkSection(int x, int z, int length) {
         // if larger than the existing chunk data or chunk does not exist then need to find the
         // first possible file position to write to. This will either be a contiguous strip of
         // free sectors longer than the length of the chunk data, or the end of the file (append).
-
-        if (length <= 0) {
-            RegionManager.logWarning("not writing chunk (%d, %d) with length %d", x, z, length);
-            return;
-        }
-
-        // free the section this chunk currently occupies
         Section currentSection = this.getChunkSection(x, z);
-        if (currentSection != null) {
-            this.setFilledSectorArray(currentSection, false);
-        }
 
         int requiredSectors = (length + 5 + 4095) / 4096;
         Section newSection;
 
         if ((currentSection != null) && (requiredSectors <= currentSection.length)) {
-            // if the chunk still fits in it's current location don't move
+            // if the chunk still fits in it's current location don't move.
+            // the sectors are already filled.
             //RegionManager.logInfo("chunk (%d, %d) fits in current location %d", x, z, currentSection.startSector);
             newSection = new Section(currentSection.startSector, requiredSectors);
         } else {
             // otherwise find a free section large enough to hold the chunk data
             newSection = getFreeSection(requiredSectors);
+            this.setFilledSectors(newSection, true);
         }
+        return newSection;
+    }
 
-        // set the new section to filled
-        this.setFilledSectorArray(newSection, true);
+    // the part of a chunk's previous section that is no longer used once the
+    // chunk has been written to newSection, or null if there is none.
+    private static Section getReleasedSection(Section currentSection, Section newSection) {
+        if ((currentSection == null) || (currentSection.length <= 0)) {
+            return null;
+        } else if (currentSection.startSector != newSection.startSector) {
+            return currentSection;
+        } else if (newSection.length < currentSection.length) {
+            return new Section(currentSection.startSector + newSection.length, currentSection.length - newSection.length);
+        }
+        return null;
+    }
+
+    // write a batch of compressed chunks.
+    // sections are allocated for all chunks first, then the chunk data is written in
+    // a single pass ordered by file position, and finally the chunk location table is
+    // written once for the whole batch.
+    // every chunk written gets the current time as its timestamp.
+    public synchronized void writeCompressedChunks(List<? extends CompressedChunk> chunks) {
+        this.writeCompressedChunks(chunks, null);
+    }
+
+    // as above, but setting the timestamp of each chunk written to
+    // chunkTimestamps[(z << 5) | x] rather than the current time
+    // (the current time for all chunks if chunkTimestamps is null).
+    public synchronized void writeCompressedChunks(List<? extends CompressedChunk> chunks, int[] chunkTimestamps) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+
+        // the file may have been closed by the region file cache (from another
+        // background thread) since the chunks were compressed. if so reopen
+        // it just for this write, as it is no longer in the cache to be closed later.
+        boolean reopened = false;
+        if (this.fin == null) {
+            if (this.open()) {
+                RegionManager.logError("could not reopen region file %s to write %d chunks", this, chunks.size());
+                return;
+            }
+            reopened = true;
+        }
 
+        List<Section> sections = new ArrayList<>(chunks.size());
+        List<Section> previousSections = new ArrayList<>(chunks.size());
+        List<CompressedChunk> sectionChunks = new ArrayList<>(chunks.size());
+        for (CompressedChunk chunk : chunks) {
+            if (chunk.size() <= 0) {
+                RegionManager.logWarning("not writing chunk (%d, %d) with length %d", chunk.x, chunk.z, chunk.size());
+                continue;
+            }
+            previousSections.add(this.getChunkSection(chunk.x, chunk.z));
+            sections.add(this.allocateChunkSection(chunk.x, chunk.z, chunk.size()));
+            sectionChunks.add(chunk);
+        }
+
+        Integer[] order = new Integer[sections.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> sections.get(i).startSector));
+
+        // chunk timestamps are in seconds, as written by minecraft
+        int currentTime = (int) (System.currentTimeMillis() / 1000L);
+
+        // sectors no longer used by the chunks written, only freed once the
+        // header no longer points at them.
+        List<Section> releasedSections = new ArrayList<>();
+
+        for (int i : order) {
+            CompressedChunk chunk = sectionChunks.get(i);
+            Section newSection = sections.get(i);
+            Section currentSection = previousSections.get(i);
+            try {
+                //RegionManager.logInfo("writing %d bytes to sector %d for chunk (%d,  %d)", chunk.size(), newSection.startSector, chunk.x, chunk.z);
+                this.writeChunkDataToSection(newSection, chunk.getBuffer(), chunk.size());
+                int endSector = newSection.startSector + newSection.length;
+                if ((endSector + 1) > this.lengthInSectors) {
+                    this.lengthInSectors = endSector + 1;
+                }
+                int chunkIndex = (chunk.z << 5) | chunk.x;
+                this.chunkSectionsArray[chunkIndex] = newSection;
+                this.timestampArray[chunkIndex] = (chunkTimestamps != null) ? chunkTimestamps[chunkIndex] : currentTime;
+                Section releasedSection = getReleasedSection(currentSection, newSection);
+                if (releasedSection != null) {
+                    releasedSections.add(releasedSection);
+                }
+            } catch (IOException e) {
+                RegionManager.logError("could not write chunk (%d, %d) to region file: %s", chunk.x, chunk.z, e);
+                // keep the chunk in its previous section, dropping the new one
+                // unless it is the previous section being rewritten in place.
+                if ((currentSection == null) || (currentSection.startSector != newSection.startSector)) {
+                    this.setFilledSectors(newSection, false);
+                }
+            }
+        }
+
+        // update the header
         try {
-            //RegionManager.logInfo("writing %d bytes to sector %d for chunk (%d,  %d)", length, newSection.startSector, x, z);
-            this.writeChunkDataToSection(newSection, compressedChunkData, length);
-            // update the header
-            this.updateChunkSection(x, z, newSection);
+            if (order.length == 1) {
+                CompressedChunk chunk = sectionChunks.get(0);
+                this.updateChunkSection(chunk.x, chunk.z, this.getChunkSection(chunk.x, chunk.z));
+                int chunkIndex = (chunk.z << 5) | chunk.x;
+                this.writeHeaderEntry(1024 + chunkIndex, this.timestampArray[chunkIndex]);
+            } else if (order.length > 1) {
+                this.writeChunkLocations();
+                this.writeHeaderEntries(1024, Arrays.copyOf(this.timestampArray, 1024));
+            }
+            // the previous sections can now be reused by later writes
+            for (Section section : releasedSections) {
+                this.setFilledSectors(section, false);
+            }
         } catch (IOException e) {
-            RegionManager.logError("could not write chunk (%d, %d) to region file: %s", x, z, e);
+            // the header on disk may still point at the previous sections, so they
+            // are left filled until the file is reopened and the header read again.
+            RegionManager.logError("could not write chunk locations to region file %s: %s", this, e);
+        }
+
+        if (reopened) {
+            this.close();
         }
     }
 }
@@ -32,13 +32,27 @@ public class RegionFileCache {
 
     private final LruCache regionFileCache = new LruCache();
     private final File worldDir;
+    // use the FileChannel/memory mapped region file implementation rather than
+    // the RandomAccessFile one
+    private final boolean useMappedRegionFiles;
 
-    public RegionFileCache(File worldDir) {
+    public RegionFileCache(File worldDir, boolean useMappedRegionFiles) {
         this.worldDir = worldDir;
+        this.useMappedRegionFiles = useMappedRegionFiles;
     }
 
-    public void close() {
+    // compact region files on close when at least this many sectors, and at
+    // least this fraction of the filled sectors, are free.
+    private static final int COMPACT_MIN_FREE_SECTORS = 64;
+    private static final int COMPACT_FREE_SECTOR_DIVISOR = 4;
+
+    public synchronized void close() {
         for (RegionFile regionFile : regionFileCache.values()) {
+            int freeSectors = regionFile.getFreeSectorCount();
+            if (regionFile.isOpen() && (freeSectors >= COMPACT_MIN_FREE_SECTORS) &&
+                    (freeSectors >= regionFile.getFilledSectorCount() / COMPACT_FREE_SECTOR_DIVISOR)) {
+                regionFile.compact();
+            }
             regionFile.close();
         }
         this.regionFileCache.clear();
@@ -63,12 +77,14 @@ public class RegionFileCache {
         return regionFilePath.isFile();
     }
 
-    public RegionFile getRegionFile(int x, int z, int dimension) {
+    public synchronized RegionFile getRegionFile(int x, int z, int dimension) {
         File regionFilePath = getRegionFilePath(x, z, dimension);
         String key = regionFilePath.toString();
         RegionFile regionFile = this.regionFileCache.get(key);
         if (regionFile == null) {
-            regionFile = new RegionFile(regionFilePath);
+            regionFile = this.useMappedRegionFiles ?
+                    new MappedRegionFile(regionFilePath) :
+                    new RegionFile(regionFilePath);
             this.regionFileCache.put(key, regionFile);
         }
         return regionFile;
@@ -3,44 +3,48 @@ package mapwriter.region;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class RegionManager {
 
-    // simple Least Recently Used (LRU) cache implementation
-    private static class LruCache extends LinkedHashMap<Long, Region> {
-        private final static long serialVersionUID = 1L;
-        private final static int MAX_LOADED_REGIONS = 64;
+    // the memory the loaded regions may use, in megabytes. set from the mapwriter config.
+    // 0 picks a size based on the maximum heap size.
+    public static int regionCacheMegabytes = 0;
 
-        public LruCache() {
-            // initial capacity, loading factor, true for access time ordering
-            super(MAX_LOADED_REGIONS * 2, 0.5f, true);
-        }
+    private static final long MIN_CACHE_BYTES = 64L << 20;
+    private static final long MAX_DEFAULT_CACHE_BYTES = 1024L << 20;
 
-        // called on every put and putAll call, the entry 'entry' is removed
-        // if this function returns true.
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Long, Region> entry) {
-            boolean ret = false;
-            if (this.size() > MAX_LOADED_REGIONS) {
-                Region region = entry.getValue();
-                region.close();
-                ret = true;
-            }
-            return ret;
-        }
-    }
+    // loaded regions in least recently used first order.
+    // regions are closed and removed when the memory used by their pixels goes over
+    // maxCacheBytes (see evictRegions).
+    private final LinkedHashMap<Long, Region> regionMap;
+    private final long maxCacheBytes;
+
+    // the regions currently being displayed, which are never evicted
+    private int viewZoomLevel = -1;
+    private int viewDimension = 0;
+    private int viewXMin, viewZMin, viewXMax, viewZMax;
 
-    private final LruCache regionMap;
+    // region cache statistics
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long cacheEvictions = 0;
 
     public final File worldDir;
     public final File imageDir;
     public BlockColours blockColours;
     public static Logger logger;
     public final RegionFileCache regionFileCache;
+    public final ChunkSaveQueue chunkSaveQueue;
 
     public int maxZoom;
     public int minZoom;
@@ -63,23 +67,29 @@ public class RegionManager {
         }
     }
 
-    public RegionManager(File worldDir, File imageDir, BlockColours blockColours, int minZoom, int maxZoom) {
+    // useMappedRegionFiles selects the region file implementation, see RegionFileCache
+    public RegionManager(File worldDir, File imageDir, BlockColours blockColours, int minZoom, int maxZoom,
+                         boolean useMappedRegionFiles) {
         this.worldDir = worldDir;
         this.imageDir = imageDir;
         this.blockColours = blockColours;
-        this.regionMap = new LruCache();
-        this.regionFileCache = new RegionFileCache(worldDir);
+        // initial capacity, loading factor, true for access time ordering
+        this.regionMap = new LinkedHashMap<>(256, 0.5f, true);
+        this.maxCacheBytes = getMaxCacheBytes();
+        this.regionFileCache = new RegionFileCache(worldDir, useMappedRegionFiles);
+        this.chunkSaveQueue = new ChunkSaveQueue();
         this.minZoom = minZoom;
         this.maxZoom = maxZoom;
     }
 
-    public void close() {
+    public synchronized void close() {
         for (Region region : this.regionMap.values()) {
             if (region != null) {
                 region.close();
             }
         }
         this.regionMap.clear();
+        this.chunkSaveQueue.saveAll(this.regionFileCache);
         this.regionFileCache.close();
     }
 
@@ -91,7 +101,82 @@ public class RegionManager {
         h.put(key, n);
     }
 
-    public void printLoadedRegionStats() {
+    private static long getMaxCacheBytes() {
+        if (regionCacheMegabytes > 0) {
+            return Math.max(MIN_CACHE_BYTES, ((long) regionCacheMegabytes) << 20);
+        }
+        return Math.min(MAX_DEFAULT_CACHE_BYTES, Math.max(MIN_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8));
+    }
+
+    // set the area of the regions being displayed, so that they are not evicted
+    public synchronized void setViewedArea(int xMin, int zMin, int xMax, int zMax, int zoomLevel, int dimension) {
+        this.viewXMin = xMin;
+        this.viewZMin = zMin;
+        this.viewXMax = xMax;
+        this.viewZMax = zMax;
+        this.viewZoomLevel = zoomLevel;
+        this.viewDimension = dimension;
+    }
+
+    private boolean isViewed(Region region) {
+        return (region.zoomLevel == this.viewZoomLevel) && (region.dimension == this.viewDimension) &&
+                (region.x >= this.viewXMin) && (region.x <= this.viewXMax) &&
+                (region.z >= this.viewZMin) && (region.z <= this.viewZMax);
+    }
+
+    // the order regions are evicted in. regions in other dimensions go first,
+    // then regions at other zoom levels to the view, then the rest.
+    private int getEvictionClass(Region region) {
+        if (region.dimension != this.viewDimension) {
+            return 0;
+        } else if (region.zoomLevel != this.viewZoomLevel) {
+            return 1;
+        }
+        return 2;
+    }
+
+    public synchronized long getCacheBytes() {
+        long bytes = 0;
+        for (Region region : this.regionMap.values()) {
+            bytes += region.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+    // close and remove regions, least recently used first within each eviction
+    // class, until the memory used by the loaded regions is within the limit.
+    private void evictRegions() {
+        long bytes = this.getCacheBytes();
+        while (bytes > this.maxCacheBytes) {
+            Region evict = null;
+            int evictClass = Integer.MAX_VALUE;
+            for (Region region : this.regionMap.values()) {
+                if (!this.isViewed(region)) {
+                    int regionClass = this.getEvictionClass(region);
+                    if (regionClass < evictClass) {
+                        evict = region;
+                        evictClass = regionClass;
+                        if (regionClass == 0) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (evict == null) {
+                // every region is being displayed
+                break;
+            }
+            bytes -= evict.getMemoryUsage();
+            evict.close();
+            this.regionMap.remove(evict.key);
+            this.cacheEvictions++;
+        }
+    }
+
+    public synchronized void printLoadedRegionStats() {
+        logInfo("region cache: %d regions, %d KiB used of %d KiB, %d hits, %d misses, %d evictions",
+                this.regionMap.size(), this.getCacheBytes() >> 10, this.maxCacheBytes >> 10,
+                this.cacheHits, this.cacheMisses, this.cacheEvictions);
         logInfo("loaded region listing:");
         Map<String, Integer> stats = new HashMap<>();
         for (Region region : this.regionMap.values()) {
@@ -106,13 +191,18 @@ public class RegionManager {
         }
     }
 
-    // must not return null
-    public Region getRegion(int x, int z, int zoomLevel, int dimension) {
+    // must not return null.
+    // synchronized as tasks for different regions run in different background threads.
+    public synchronized Region getRegion(int x, int z, int zoomLevel, int dimension) {
         Region region = this.regionMap.get(Region.getKey(x, z, zoomLevel, dimension));
         if (region == null) {
-            // add region
+            // make room for the region, then add it
+            this.cacheMisses++;
+            this.evictRegions();
             region = new Region(this, x, z, zoomLevel, dimension);
             this.regionMap.put(region.key, region);
+        } else {
+            this.cacheHits++;
         }
         return region;
     }
@@ -122,7 +212,43 @@ public class RegionManager {
         region.updateChunk(chunk);
     }
 
+    // receives the progress of rebuildRegions, called from the thread running the rebuild
+    public interface RebuildListener {
+        void onRegionRebuilt(int regionsDone, int regionCount, int chunksDone);
+    }
+
+    // the rendered zoom level 0 pixels of a rebuilt region
+    private static class RebuiltRegion {
+        final int x;
+        final int z;
+        // null if the region did not change
+        int[] pixels = null;
+        RenderManifest manifest = null;
+        int chunkCount = 0;
+        int unchangedChunkCount = 0;
+
+        RebuiltRegion(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+
     public void rebuildRegions(int xStart, int zStart, int w, int h, int dimension) {
+        this.rebuildRegions(xStart, zStart, w, h, dimension, null);
+    }
+
+    // each region is rebuilt as a separate job on the ChunkCompressor pool, which reads
+    // the region file and renders its chunks into a copy of the region's pixels without
+    // touching the loaded regions. the results are then merged in on the calling thread
+    // in the order the jobs were submitted, replacing the region's pixels and updating
+    // its zoom levels.
+    // only a limited number of jobs are in flight at once so the memory used by the
+    // rendered pixels stays bounded however large the area is.
+    //
+    // the rebuild is incremental. chunks whose timestamp in the region file matches the
+    // render manifest of the region (and regions rendered with the same block colours)
+    // keep their existing pixels and are not read from the region file at all.
+    public void rebuildRegions(int xStart, int zStart, int w, int h, int dimension, RebuildListener listener) {
         // read all zoom level 0 regions
         // then find all regions with a backing image at zoom level 0
 
@@ -133,24 +259,135 @@ public class RegionManager {
 
         logInfo("rebuilding regions from (%d, %d) to (%d, %d)", xStart, zStart, xStart + w, zStart + h);
 
+        List<int[]> regionCoords = new ArrayList<>();
         for (int rX = xStart; rX < (xStart + w); rX += Region.SIZE) {
             for (int rZ = zStart; rZ < (zStart + h); rZ += Region.SIZE) {
-                Region region = this.getRegion(rX, rZ, 0, dimension);
-                if (this.regionFileCache.regionFileExists(rX, rZ, dimension)) {
-                    region.clear();
-                    for (int cz = 0; cz < 32; cz++) {
-                        for (int cx = 0; cx < 32; cx++) {
-                            // load chunk from anvil file
-                            MwChunk chunk = MwChunk.read(
-                                    (region.x >> 4) + cx, (region.z >> 4) + cz,
-                                    region.dimension, this.regionFileCache
-                            );
-                            region.updateChunk(chunk);
-                        }
+                regionCoords.add(new int[]{rX, rZ});
+            }
+        }
+
+        int colourHash = this.blockColours.getColourHash();
+        int maxPendingJobs = ChunkCompressor.getParallelism() * 2;
+        ArrayDeque<Future<RebuiltRegion>> pendingJobs = new ArrayDeque<>();
+        int nextRegion = 0;
+        int regionsDone = 0;
+        int chunksDone = 0;
+        int unchangedChunks = 0;
+        while ((nextRegion < regionCoords.size()) || !pendingJobs.isEmpty()) {
+            if ((nextRegion < regionCoords.size()) && (pendingJobs.size() < maxPendingJobs)) {
+                int[] coords = regionCoords.get(nextRegion++);
+                // the previous render of the region to start from, if it used the same colours
+                Region region = this.getRegion(coords[0], coords[1], 0, dimension);
+                RenderManifest manifest = region.surfacePixels.getManifest();
+                int[] pixels = null;
+                if ((manifest != null) && (manifest.colourHash == colourHash)) {
+                    pixels = region.surfacePixels.copyPixels();
+                }
+                RenderManifest previousManifest = (pixels != null) ? manifest : null;
+                int[] previousPixels = pixels;
+                pendingJobs.add(ChunkCompressor.submit(() -> this.renderRegionFile(
+                        coords[0], coords[1], dimension, colourHash, previousManifest, previousPixels)));
+            } else {
+                RebuiltRegion rebuilt = null;
+                try {
+                    rebuilt = pendingJobs.poll().get();
+                } catch (ExecutionException e) {
+                    logError("exception while rebuilding region: %s", e.getCause());
+                } catch (InterruptedException e) {
+                    logError("rebuilding regions was interrupted");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if ((rebuilt != null) && (rebuilt.pixels != null)) {
+                    Region region = this.getRegion(rebuilt.x, rebuilt.z, 0, dimension);
+                    region.surfacePixels.setPixels(rebuilt.pixels, rebuilt.manifest);
+                    region.updateZoomLevels();
+                }
+                if (rebuilt != null) {
+                    chunksDone += rebuilt.chunkCount;
+                    unchangedChunks += rebuilt.unchangedChunkCount;
+                }
+                regionsDone++;
+                if (listener != null) {
+                    listener.onRegionRebuilt(regionsDone, regionCoords.size(), chunksDone);
+                }
+            }
+        }
+
+        logInfo("rebuilt %d regions, rendered %d chunks, %d chunks unchanged", regionsDone, chunksDone, unchangedChunks);
+    }
+
+    // read and render the chunks in a region file that have changed since the previous
+    // render of the region (all chunks if previousManifest is null), drawing them over
+    // previousPixels.
+    // the pixels of the result are left null if the region file does not exist, could
+    // not be opened or no chunks have changed. previousPixels is then returned to the
+    // pixel buffer pool.
+    private RebuiltRegion renderRegionFile(int x, int z, int dimension, int colourHash,
+                                           RenderManifest previousManifest, int[] previousPixels) {
+        RebuiltRegion rebuilt = new RebuiltRegion(x, z);
+        if (!this.regionFileCache.regionFileExists(x, z, dimension)) {
+            // leave whatever was rendered before, the region may have been explored
+            // without region file output enabled
+            PixelBufferPool.release(previousPixels);
+            return rebuilt;
+        }
+        RegionFile regionFile = this.regionFileCache.getRegionFile(x, z, dimension);
+        if (!regionFile.isOpen() && regionFile.open()) {
+            PixelBufferPool.release(previousPixels);
+            return rebuilt;
+        }
+
+        int[] timestamps = regionFile.getChunkTimestamps();
+        int[] pixels = (previousPixels != null) ? previousPixels : PixelBufferPool.acquire(true);
+        boolean[] changed = new boolean[1024];
+        boolean anyChanged = (previousPixels == null);
+        for (int i = 0; i < 1024; i++) {
+            changed[i] = (previousManifest == null) || !previousManifest.isChunkCurrent(i, timestamps[i]);
+            if (changed[i]) {
+                anyChanged = true;
+                if (previousPixels != null) {
+                    // clear the chunk in case it is no longer in the region file
+                    int offset = ((i >> 5) << (4 + Region.SHIFT)) + ((i & 31) << 4);
+                    for (int j = 0; j < MwChunk.SIZE; j++) {
+                        Arrays.fill(pixels, offset + (j << Region.SHIFT), offset + (j << Region.SHIFT) + MwChunk.SIZE, 0);
                     }
                 }
-                region.updateZoomLevels();
+            } else {
+                rebuilt.unchangedChunkCount++;
+            }
+        }
+        if (!anyChanged) {
+            PixelBufferPool.release(previousPixels);
+            return rebuilt;
+        }
+
+        // read the compressed chunks that changed from the anvil file in file order,
+        // then inflate and parse them in parallel
+        MwChunk[] chunks = ChunkCompressor.decompress(
+                x >> 4, z >> 4, dimension,
+                regionFile.readCompressedChunks(changed)
+        );
+        int[] renderedTimestamps = new int[1024];
+        for (int i = 0; i < 1024; i++) {
+            MwChunk chunk = chunks[i];
+            if (chunk != null) {
+                int offset = ((i >> 5) << (4 + Region.SHIFT)) + ((i & 31) << 4);
+                ChunkRender.renderSurface(
+                        this.blockColours, chunk, pixels, offset, Region.SIZE,
+                        (dimension == -1) // use ceiling algorithm for nether
+                );
+                renderedTimestamps[i] = timestamps[i];
+                rebuilt.chunkCount++;
+            } else if (!changed[i] || (timestamps[i] == 0)) {
+                renderedTimestamps[i] = timestamps[i];
+            } else {
+                // could not be read, try again next rebuild
+                renderedTimestamps[i] = -1;
             }
         }
+        rebuilt.pixels = pixels;
+        rebuilt.manifest = new RenderManifest(colourHash, renderedTimestamps);
+        return rebuilt;
     }
 }
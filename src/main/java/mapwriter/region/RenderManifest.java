@@ -0,0 +1,72 @@
+package mapwriter.region;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+Records what has been rendered into a zoom level 0 region image.
+For each chunk it stores the chunk timestamp (from the anvil region file header)
+of the copy of the chunk last rendered by a rebuild, along with a hash of the
+block colours used.
+It is saved next to the region image so that a later rebuild only needs to read
+and render the chunks whose timestamp has changed since.
+*/
+
+public class RenderManifest {
+
+    private static final int MAGIC = 0x4d574d31; // "MWM1"
+
+    public final int colourHash;
+    // indexed by (z << 5) | x, 0 for chunks not in the region file when rendered
+    // and -1 for chunks that could not be rendered
+    public final int[] chunkTimestamps;
+
+    public RenderManifest(int colourHash, int[] chunkTimestamps) {
+        this.colourHash = colourHash;
+        this.chunkTimestamps = chunkTimestamps;
+    }
+
+    // returns true if the chunk with the given timestamp (0 if it is not in the
+    // region file) is the same as the one rendered into the image.
+    public boolean isChunkCurrent(int index, int timestamp) {
+        return this.chunkTimestamps[index] == timestamp;
+    }
+
+    // returns null if the file does not exist or is not a valid manifest
+    public static RenderManifest load(File file) {
+        RenderManifest manifest = null;
+        if (file.isFile()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (dis.readInt() == MAGIC) {
+                    int colourHash = dis.readInt();
+                    int[] chunkTimestamps = new int[1024];
+                    for (int i = 0; i < 1024; i++) {
+                        chunkTimestamps[i] = dis.readInt();
+                    }
+                    manifest = new RenderManifest(colourHash, chunkTimestamps);
+                }
+            } catch (IOException e) {
+                RegionManager.logWarning("could not read render manifest %s: %s", file, e);
+            }
+        }
+        return manifest;
+    }
+
+    public void save(File file) {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(this.colourHash);
+            for (int i = 0; i < 1024; i++) {
+                dos.writeInt(this.chunkTimestamps[i]);
+            }
+        } catch (IOException e) {
+            RegionManager.logError("could not write render manifest %s: %s", file, e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package mapwriter.region;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Pool of recycled chunk section arrays (block ids, metadata and the other
+per section byte and nibble arrays).
+
+Every chunk update copies the section arrays of the chunk on the main thread so
+the chunk can be rendered in the background. Rather than allocating new arrays for
+each copy, the arrays of rendered snapshots are released here once the update task
+is done with them and reused by the next snapshots.
+
+Arrays are pooled by length, up to MAX_POOLED_BYTES in total.
+*/
+
+public class SectionArrayPool {
+
+    private static final int MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    private static final Map<Integer, ArrayDeque<byte[]>> pool = new HashMap<>();
+    private static int pooledBytes = 0;
+
+    // get an array of the given length with undefined contents
+    public static byte[] acquire(int length) {
+        synchronized (pool) {
+            ArrayDeque<byte[]> arrays = pool.get(length);
+            byte[] arr = (arrays != null) ? arrays.poll() : null;
+            if (arr != null) {
+                pooledBytes -= length;
+                return arr;
+            }
+        }
+        return new byte[length];
+    }
+
+    public static void release(byte[] arr) {
+        if ((arr != null) && (arr.length > 0)) {
+            synchronized (pool) {
+                if ((pooledBytes + arr.length) <= MAX_POOLED_BYTES) {
+                    pool.computeIfAbsent(arr.length, k -> new ArrayDeque<>()).add(arr);
+                    pooledBytes += arr.length;
+                }
+            }
+        }
+    }
+
+    public static void release(byte[][] arrays) {
+        if (arrays != null) {
+            for (int i = 0; i < arrays.length; i++) {
+                release(arrays[i]);
+                arrays[i] = null;
+            }
+        }
+    }
+}
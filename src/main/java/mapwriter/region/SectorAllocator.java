@@ -0,0 +1,108 @@
+package mapwriter.region;
+
+import java.util.BitSet;
+import java.util.TreeSet;
+
+/*
+Tracks which 4 KiB sectors of a region file are in use.
+
+Filled sectors are stored as bits in a BitSet. The free runs of sectors between
+filled sectors are also kept in a TreeSet ordered by (length, start sector) so that
+the smallest free run that can hold a chunk (the best fit) is found in O(log n).
+Free sectors past the last filled sector are not stored as a run, new chunks that
+do not fit in any free run are appended there instead.
+
+The first two sectors hold the region file header and are never allocated.
+*/
+
+public class SectorAllocator {
+
+    public static final int FIRST_DATA_SECTOR = 2;
+
+    private final BitSet filled = new BitSet();
+    // free runs packed as (length << 32) | startSector
+    private final TreeSet<Long> freeRuns = new TreeSet<>();
+    private int filledCount = 0;
+
+    private static long packRun(int start, int length) {
+        return (((long) length) << 32) | (start & 0xffffffffL);
+    }
+
+    public void clear() {
+        this.filled.clear();
+        this.freeRuns.clear();
+        this.filledCount = 0;
+    }
+
+    public boolean isFilled(int sector) {
+        return this.filled.get(sector);
+    }
+
+    // returns true if any sector in the range is filled
+    public boolean overlaps(int start, int length) {
+        int i = this.filled.nextSetBit(start);
+        return (i >= 0) && (i < start + length);
+    }
+
+    // index of the first sector after the last filled sector
+    public int getEndSector() {
+        return Math.max(FIRST_DATA_SECTOR, this.filled.length());
+    }
+
+    public int getFilledCount() {
+        return this.filledCount;
+    }
+
+    // free sectors between the header and the last filled sector
+    public int getFreeCount() {
+        return this.getEndSector() - FIRST_DATA_SECTOR - this.filledCount;
+    }
+
+    // add or remove every free run within [lo, hi) to or from the free run set
+    private void updateFreeRuns(int lo, int hi, boolean add) {
+        hi = Math.min(hi, this.filled.length());
+        int start = this.filled.nextClearBit(lo);
+        while (start < hi) {
+            int end = this.filled.nextSetBit(start);
+            long run = packRun(start, end - start);
+            if (add) {
+                this.freeRuns.add(run);
+            } else {
+                this.freeRuns.remove(run);
+            }
+            start = this.filled.nextClearBit(end);
+        }
+    }
+
+    // set the sectors [start, start + length) to filled or free
+    public void setFilled(int start, int length, boolean filled) {
+        int end = start + length;
+        // the free runs that can change lie between the nearest filled
+        // sectors either side of the range.
+        int lo = Math.max(FIRST_DATA_SECTOR, this.filled.previousSetBit(start - 1) + 1);
+        int hi = this.filled.nextSetBit(end);
+        if (hi < 0) {
+            hi = Integer.MAX_VALUE;
+        }
+        this.updateFreeRuns(lo, hi, false);
+
+        for (int i = start; i < end; i++) {
+            boolean wasFilled = this.filled.get(i);
+            if (filled && wasFilled) {
+                RegionManager.logError("sector %d already filled, possible chunk overlap", i);
+            } else if (filled != wasFilled) {
+                this.filledCount += filled ? 1 : -1;
+            }
+        }
+        this.filled.set(start, end, filled);
+
+        this.updateFreeRuns(lo, hi, true);
+    }
+
+    // get the start sector of the smallest free run at least requiredLength
+    // sectors long, or the end of the file if there is none.
+    public int findFree(int requiredLength) {
+        Long run = this.freeRuns.ceiling(packRun(0, requiredLength));
+        return (run != null) ? (int) (run & 0xffffffffL) : this.getEndSector();
+    }
+}
@@ -2,75 +2,202 @@ package mapwriter.region;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+The pixels of a region, loaded from and saved to the region image file.
+
+Region images are stored as raw ARGB pixels, each row filtered to the difference
+between neighbouring pixels and then deflated (see saveTileFile). This is read
+straight into the pixel array, without going through a BufferedImage and PNG
+codec as region images written by earlier versions were. Those PNG images are
+still loaded if there is no tile file for a region, and replaced by a tile file
+the next time the region is saved in full. saveImage can still write PNG images
+for export.
+
+Changes are tracked per 16x16 pixel tile (one chunk at zoom level 0). When the
+region is closed after only a few tiles have changed, just those tiles are appended
+to a delta file next to the image rather than rewriting the whole image. The delta
+is applied on top of the image when it is next loaded, and merged back into the
+image (rewriting it in full) once it holds more than MAX_DELTA_TILES tiles.
+*/
 
 public class SurfacePixels {
 
+    public static final int TILE_SHIFT = 4;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    public static final int TILES_PER_ROW = Region.SIZE >> TILE_SHIFT;
+    public static final int TILE_COUNT = TILES_PER_ROW * TILES_PER_ROW;
+    public static final int MAX_DELTA_TILES = TILE_COUNT / 4;
+
+    private static final int DELTA_MAGIC = 0x4d574431; // "MWD1"
+
+    private static final int TILE_FILE_MAGIC = 0x4d575431; // "MWT1"
+    private static final int TILE_FILE_HEADER_SIZE = 12;
+
+    // reusable buffer for the raw bytes of a region's pixels
+    private static final ThreadLocal<byte[]> pixelBytes =
+            ThreadLocal.withInitial(() -> new byte[Region.SIZE * Region.SIZE * 4]);
+
     protected Region region;
     protected File filename;
+    protected File pngFilename;
+    protected File deltaFile;
+    protected File manifestFile;
     protected int[] pixels;
+    // what has been rendered into the pixels by a rebuild, or null if unknown
+    protected RenderManifest manifest = null;
     protected boolean cannotLoad = false;
-    protected int updateCount = 0;
+    // tiles changed since the pixels were loaded or saved
+    protected final BitSet dirtyTiles = new BitSet(TILE_COUNT);
+    // true if the pixels (apart from the dirty tiles) match the image and delta files
+    protected boolean matchesFile = false;
+    // number of tiles in the delta file
+    protected int deltaTileCount = 0;
 
-    public SurfacePixels(Region region, File filename) {
+    public SurfacePixels(Region region) {
         this.region = region;
-        this.filename = filename;
+        this.filename = region.getImageFile();
+        this.pngFilename = region.getPngImageFile();
+        this.deltaFile = region.getDeltaFile();
+        this.manifestFile = region.getManifestFile();
     }
 
-    public void clear() {
+    public synchronized void clear() {
         if (this.pixels != null) {
             Arrays.fill(this.pixels, 0);
+            this.dirtyTiles.set(0, TILE_COUNT);
         }
+        this.manifest = null;
     }
 
-    public void close() {
-        if (this.updateCount > 0) {
+    public synchronized void close() {
+        if (!this.dirtyTiles.isEmpty()) {
             this.save();
         }
+        PixelBufferPool.release(this.pixels);
         this.pixels = null;
     }
 
+    // mark the tiles covering an area of pixels as changed
+    protected void markDirty(int x, int z, int w, int h) {
+        int tx0 = x >> TILE_SHIFT;
+        int tx1 = (x + w - 1) >> TILE_SHIFT;
+        int tz0 = z >> TILE_SHIFT;
+        int tz1 = (z + h - 1) >> TILE_SHIFT;
+        for (int tz = tz0; tz <= tz1; tz++) {
+            this.dirtyTiles.set((tz * TILES_PER_ROW) + tx0, (tz * TILES_PER_ROW) + tx1 + 1);
+        }
+    }
+
     private void save() {
         if (this.pixels != null) {
-            saveImage(this.filename, this.pixels, Region.SIZE, Region.SIZE);
+            int dirtyCount = this.dirtyTiles.cardinality();
+            if (this.matchesFile && ((this.deltaTileCount + dirtyCount) <= MAX_DELTA_TILES) &&
+                    !appendDeltaTiles(this.deltaFile, this.pixels, this.dirtyTiles)) {
+                this.deltaTileCount += dirtyCount;
+            } else {
+                if (!saveTileFile(this.filename, this.pixels, Region.SIZE, Region.SIZE)) {
+                    if (this.deltaFile.exists()) {
+                        this.deltaFile.delete();
+                    }
+                    if (this.pngFilename.exists()) {
+                        this.pngFilename.delete();
+                    }
+                }
+                this.deltaTileCount = 0;
+            }
             this.cannotLoad = false;
+            this.matchesFile = true;
+            if (this.manifestFile != null) {
+                if (this.manifest != null) {
+                    this.manifest.save(this.manifestFile);
+                } else if (this.manifestFile.exists()) {
+                    this.manifestFile.delete();
+                }
+            }
         }
-        this.updateCount = 0;
+        this.dirtyTiles.clear();
     }
 
     private void load() {
         if (!this.cannotLoad) {
-            this.pixels = loadImage(this.filename, Region.SIZE, Region.SIZE);
-            if (this.pixels != null) {
-                // set opaque black pixels to transparent so that
-                // background texture shows
-                for (int i = 0; i < this.pixels.length; i++) {
-                    int colour = this.pixels[i];
-                    if (colour == 0xff000000) {
-                        this.pixels[i] = 0;
+            this.pixels = PixelBufferPool.acquire(false);
+            if (loadTileFile(this.filename, this.pixels, Region.SIZE, Region.SIZE)) {
+                PixelBufferPool.release(this.pixels);
+                this.pixels = null;
+            }
+            if ((this.pixels == null) && this.pngFilename.isFile()) {
+                this.pixels = loadImage(this.pngFilename, Region.SIZE, Region.SIZE);
+                if (this.pixels != null) {
+                    // set opaque black pixels to transparent so that
+                    // background texture shows
+                    for (int i = 0; i < this.pixels.length; i++) {
+                        int colour = this.pixels[i];
+                        if (colour == 0xff000000) {
+                            this.pixels[i] = 0;
+                        }
                     }
                 }
+            }
+            if (this.pixels != null) {
+                this.dirtyTiles.clear();
+                this.deltaTileCount = applyDeltaTiles(this.deltaFile, this.pixels);
+                this.matchesFile = (this.deltaTileCount >= 0);
+                if (!this.matchesFile) {
+                    // rewrite the image and drop the corrupt delta file on close
+                    this.dirtyTiles.set(0, TILE_COUNT);
+                }
+                if (this.manifestFile != null) {
+                    this.manifest = RenderManifest.load(this.manifestFile);
+                }
             } else {
                 this.cannotLoad = true;
+                this.matchesFile = false;
+                this.dirtyTiles.clear();
             }
-            this.updateCount = 0;
         }
     }
 
-    public int[] getPixels() {
+    // approximate heap memory used by the pixels
+    public synchronized long getMemoryUsage() {
+        return (this.pixels != null) ? (this.pixels.length * 4L) : 0L;
+    }
+
+    // the returned array must only be accessed while holding the lock on this
+    // SurfacePixels, as it is reused by another region once this one is closed.
+    public synchronized int[] getPixels() {
         if (this.pixels == null) {
             this.load();
         }
         return this.pixels;
     }
 
-    public int[] getOrAllocatePixels() {
+    public synchronized int[] getOrAllocatePixels() {
         this.getPixels();
         if (this.pixels == null) {
-            this.pixels = new int[Region.SIZE * Region.SIZE];
-            this.clear();
+            this.pixels = PixelBufferPool.acquire(true);
+            this.matchesFile = false;
         }
         return this.pixels;
     }
@@ -79,16 +206,50 @@ public class SurfacePixels {
         int x = (chunk.x << 4);
         int z = (chunk.z << 4);
         int offset = this.region.getPixelOffset(x, z);
-        int[] pixels = this.getOrAllocatePixels();
-        // TODO: refactor so that blockColours can be accessed
-        // more directly
-        ChunkRender.renderSurface(
-                this.region.regionManager.blockColours,
-                chunk, pixels, offset, Region.SIZE,
-                (chunk.dimension == -1) // use ceiling algorithm for nether
-        );
+        synchronized (this) {
+            int[] pixels = this.getOrAllocatePixels();
+            // TODO: refactor so that blockColours can be accessed
+            // more directly
+            ChunkRender.renderSurface(
+                    this.region.regionManager.blockColours,
+                    chunk, pixels, offset, Region.SIZE,
+                    (chunk.dimension == -1) // use ceiling algorithm for nether
+            );
+            this.markDirty(x & (Region.SIZE - 1), z & (Region.SIZE - 1), MwChunk.SIZE, MwChunk.SIZE);
+        }
+        // must not hold the lock on these pixels while updating the zoom levels.
+        // getting the next zoom level region locks the region manager, which
+        // may close (and so lock) this region when evicting it.
         this.region.updateZoomLevels(x, z, MwChunk.SIZE, MwChunk.SIZE);
-        this.updateCount++;
+    }
+
+    public synchronized RenderManifest getManifest() {
+        this.getPixels();
+        return this.manifest;
+    }
+
+    // get a copy of the pixels in an array from the pixel buffer pool, or null if
+    // there are none
+    public synchronized int[] copyPixels() {
+        int[] pixels = this.getPixels();
+        int[] copy = null;
+        if (pixels != null) {
+            copy = PixelBufferPool.acquire(false);
+            System.arraycopy(pixels, 0, copy, 0, pixels.length);
+        }
+        return copy;
+    }
+
+    // replace every pixel of the region with pixels rendered elsewhere
+    // (e.g. by RegionManager.rebuildRegions), along with the manifest of
+    // what was rendered.
+    public synchronized void setPixels(int[] pixels, RenderManifest manifest) {
+        if (this.pixels != pixels) {
+            PixelBufferPool.release(this.pixels);
+        }
+        this.pixels = pixels;
+        this.manifest = manifest;
+        this.dirtyTiles.set(0, TILE_COUNT);
     }
 
     // get the averaged colour of a 2x2 pixel area in the given pixels
@@ -110,7 +271,7 @@ public class SurfacePixels {
 
     // update an area of pixels in this region from an area of pixels in srcPixels,
     // scaling the pixels by 50%.
-    public void updateScaled(int[] srcPixels, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH) {
+    public synchronized void updateScaled(int[] srcPixels, int srcX, int srcZ, int dstX, int dstZ, int dstW, int dstH) {
         int[] dstPixels = this.getOrAllocatePixels();
         for (int j = 0; j < dstH; j++) {
             for (int i = 0; i < dstW; i++) {
@@ -119,9 +280,128 @@ public class SurfacePixels {
                 dstPixels[((dstZ + j) << Region.SHIFT) + (dstX + i)] = dstPixel;
             }
         }
-        this.updateCount++;
+        this.markDirty(dstX, dstZ, dstW, dstH);
     }
 
+    // write pixels to a tile file: a header of the magic number, width and height
+    // followed by the deflated pixels. each row is stored as the difference between
+    // neighbouring pixels so areas of a single colour deflate to runs of zeros.
+    // the file is written to a temporary file first so an existing tile file is
+    // never left partly written.
+    // returns true on error.
+    public static boolean saveTileFile(File file, int[] pixels, int w, int h) {
+        byte[] bytes = getPixelBytes(w * h * 4);
+        IntBuffer ints = ByteBuffer.wrap(bytes).asIntBuffer();
+        for (int j = 0; j < h; j++) {
+            int prev = 0;
+            for (int i = 0; i < w; i++) {
+                int offset = (j * w) + i;
+                int colour = pixels[offset];
+                ints.put(offset, colour - prev);
+                prev = colour;
+            }
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile))) {
+            dos.writeInt(TILE_FILE_MAGIC);
+            dos.writeInt(w);
+            dos.writeInt(h);
+            deflater.setInput(bytes, 0, w * h * 4);
+            deflater.finish();
+            byte[] buf = new byte[65536];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                dos.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            RegionManager.logError("saveTileFile: error: could not write tile file %s: %s", tmpFile, e);
+            return true;
+        } finally {
+            deflater.end();
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            RegionManager.logError("saveTileFile: error: could not replace tile file %s: %s", file, e);
+            return true;
+        }
+        return false;
+    }
+
+    // read a tile file of the given size into pixels.
+    // returns true on error, or if the file does not exist.
+    public static boolean loadTileFile(File file, int[] pixels, int w, int h) {
+        if (!file.isFile()) {
+            return true;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            RegionManager.logWarning("loadTileFile: could not read tile file %s: %s", file, e);
+            return true;
+        }
+        ByteBuffer header = ByteBuffer.wrap(data);
+        if ((data.length < TILE_FILE_HEADER_SIZE) || (header.getInt(0) != TILE_FILE_MAGIC)) {
+            RegionManager.logWarning("loadTileFile: %s is not a tile file", file);
+            return true;
+        }
+        if ((header.getInt(4) != w) || (header.getInt(8) != h)) {
+            RegionManager.logWarning(
+                    "loadTileFile: tile file '%s' does not match expected dimensions (got %dx%d expected %dx%d)",
+                    file, header.getInt(4), header.getInt(8), w, h
+            );
+            return true;
+        }
+
+        byte[] bytes = getPixelBytes(w * h * 4);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, TILE_FILE_HEADER_SIZE, data.length - TILE_FILE_HEADER_SIZE);
+            int length = 0;
+            while ((length < (w * h * 4)) && !inflater.finished()) {
+                int n = inflater.inflate(bytes, length, (w * h * 4) - length);
+                if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != (w * h * 4)) {
+                RegionManager.logWarning("loadTileFile: tile file %s is truncated", file);
+                return true;
+            }
+        } catch (DataFormatException e) {
+            RegionManager.logWarning("loadTileFile: tile file %s is corrupt: %s", file, e);
+            return true;
+        } finally {
+            inflater.end();
+        }
+
+        IntBuffer ints = ByteBuffer.wrap(bytes).asIntBuffer();
+        for (int j = 0; j < h; j++) {
+            int prev = 0;
+            for (int i = 0; i < w; i++) {
+                int offset = (j * w) + i;
+                prev += ints.get(offset);
+                pixels[offset] = prev;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] getPixelBytes(int length) {
+        byte[] bytes = pixelBytes.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            pixelBytes.set(bytes);
+        }
+        return bytes;
+    }
+
+    // write pixels to a PNG image, for export
     public static void saveImage(File filename, int[] pixels, int w, int h) {
         BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
         img.setRGB(0, 0, w, h, pixels, 0, w);
@@ -134,6 +414,7 @@ public class SurfacePixels {
         }
     }
 
+    // read a PNG image, as region images were written by earlier versions
     public static int[] loadImage(File filename, int w, int h) {
         BufferedImage img = null;
         try {
@@ -154,4 +435,85 @@ public class SurfacePixels {
         }
         return pixels;
     }
+
+    // append the given tiles of the pixels to a delta file.
+    // each append is a block of the tile count, the compressed length and the
+    // deflated tiles, each tile being its index followed by its pixels.
+    // returns true on error.
+    public static boolean appendDeltaTiles(File file, int[] pixels, BitSet tiles) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream dos = new DataOutputStream(new DeflaterOutputStream(bos, deflater, 8192))) {
+            for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+                dos.writeShort(tile);
+                int offset = ((tile / TILES_PER_ROW) << (TILE_SHIFT + Region.SHIFT)) + ((tile % TILES_PER_ROW) << TILE_SHIFT);
+                for (int j = 0; j < TILE_SIZE; j++) {
+                    for (int i = 0; i < TILE_SIZE; i++) {
+                        dos.writeInt(pixels[offset + (j << Region.SHIFT) + i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // not possible writing to a byte array
+        } finally {
+            deflater.end();
+        }
+
+        try (DataOutputStream fos = new DataOutputStream(new FileOutputStream(file, true))) {
+            fos.writeInt(DELTA_MAGIC);
+            fos.writeInt(tiles.cardinality());
+            fos.writeInt(bos.size());
+            bos.writeTo(fos);
+        } catch (IOException e) {
+            RegionManager.logError("appendDeltaTiles: error: could not write tiles to %s: %s", file, e);
+            return true;
+        }
+        return false;
+    }
+
+    // copy every tile in a delta file to the pixels, in the order they were appended.
+    // returns the number of tiles in the file, or -1 if the file is corrupt.
+    public static int applyDeltaTiles(File file, int[] pixels) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int tileCount = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int magic;
+                try {
+                    magic = dis.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int blockTileCount = dis.readInt();
+                int length = dis.readInt();
+                if ((magic != DELTA_MAGIC) || (blockTileCount < 0) || (blockTileCount > TILE_COUNT) || (length < 0)) {
+                    throw new IOException("invalid delta block header");
+                }
+                byte[] block = new byte[length];
+                dis.readFully(block);
+                try (DataInputStream tis = new DataInputStream(new InflaterInputStream(
+                        new ByteArrayInputStream(block)))) {
+                    for (int n = 0; n < blockTileCount; n++) {
+                        int tile = tis.readShort();
+                        if ((tile < 0) || (tile >= TILE_COUNT)) {
+                            throw new IOException("invalid tile index " + tile);
+                        }
+                        int offset = ((tile / TILES_PER_ROW) << (TILE_SHIFT + Region.SHIFT)) + ((tile % TILES_PER_ROW) << TILE_SHIFT);
+                        for (int j = 0; j < TILE_SIZE; j++) {
+                            for (int i = 0; i < TILE_SIZE; i++) {
+                                pixels[offset + (j << Region.SHIFT) + i] = tis.readInt();
+                            }
+                        }
+                    }
+                }
+                tileCount += blockTileCount;
+            }
+        } catch (IOException e) {
+            RegionManager.logWarning("applyDeltaTiles: could not read tiles from %s: %s", file, e);
+            return -1;
+        }
+        return tileCount;
+    }
 }
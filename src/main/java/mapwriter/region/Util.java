@@ -20,7 +20,7 @@ public class Util {
         if (arr == null)
             return 0;
         if (arr.length > offset)
-            return arr[offset];
+            return arr[offset] & 0xff;
         return 0;
     }
 
@@ -42,4 +42,33 @@ public class Util {
         val arr = nib.data;
         return nullSafeCopy(arr);
     }
+
+    // mix the contents of arr into a content hash
+    public static long hash(long hash, byte[] arr) {
+        return (hash * 0x9e3779b97f4a7c15L) + Arrays.hashCode(arr);
+    }
+
+    public static long hash(long hash, short[] arr) {
+        return (hash * 0x9e3779b97f4a7c15L) + Arrays.hashCode(arr);
+    }
+
+    public static long hash(long hash, NibbleArray nib) {
+        byte[] data = (nib != null) ? nib.data : null;
+        return hash(hash, data);
+    }
+
+    // copy into an array from the SectionArrayPool
+    public static byte[] pooledCopy(byte[] arr) {
+        if (arr == null)
+            return null;
+        val copy = SectionArrayPool.acquire(arr.length);
+        System.arraycopy(arr, 0, copy, 0, arr.length);
+        return copy;
+    }
+
+    public static byte[] pooledCopy(NibbleArray nib) {
+        if (nib == null)
+            return null;
+        return pooledCopy(nib.data);
+    }
 }
@@ -5,12 +5,20 @@ import mapwriter.MwUtil;
 import mapwriter.region.BlockColours;
 import mapwriter.region.RegionManager;
 
-public class RebuildRegionsTask extends Task {
+public class RebuildRegionsTask extends Task implements RegionManager.RebuildListener {
+    private final Mw mw;
     private final RegionManager regionManager;
     private final BlockColours blockColours;
     private final int x, z, w, h, dimension;
 
+    // progress, written by the background thread and read in onProgress
+    private volatile int regionsDone = 0;
+    private volatile int regionCount = 0;
+    private volatile int chunksDone = 0;
+    private long startTime = 0;
+
     public RebuildRegionsTask(Mw mw, int x, int z, int w, int h, int dimension) {
+        this.mw = mw;
         this.regionManager = mw.regionManager;
         this.blockColours = mw.blockColours;
         this.x = x;
@@ -22,13 +30,52 @@ public class RebuildRegionsTask extends Task {
 
     @Override
     public void run() {
+        this.startTime = System.nanoTime();
         this.regionManager.blockColours = blockColours;
-        this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension);
+        this.regionManager.rebuildRegions(this.x, this.z, this.w, this.h, this.dimension, this);
+    }
+
+    @Override
+    public void onRegionRebuilt(int regionsDone, int regionCount, int chunksDone) {
+        this.regionCount = regionCount;
+        this.chunksDone = chunksDone;
+        // written last so that the other fields are up to date when it changes
+        this.regionsDone = regionsDone;
+    }
+
+    public int getRegionsDone() {
+        return this.regionsDone;
+    }
+
+    public int getRegionCount() {
+        return this.regionCount;
+    }
+
+    public int getChunksPerSecond() {
+        long elapsed = System.nanoTime() - this.startTime;
+        return (elapsed > 0) ? (int) (this.chunksDone * 1000000000L / elapsed) : 0;
+    }
+
+    @Override
+    public void onProgress() {
+        // let the map GUI draw the progress of the rebuild
+        if (this.regionsDone > 0) {
+            this.mw.rebuildRegionsTask = this;
+        }
     }
 
     @Override
     public void onComplete() {
-        MwUtil.printBoth("rebuild task complete");
+        if (this.mw.rebuildRegionsTask == this) {
+            this.mw.rebuildRegionsTask = null;
+        }
+        // the rebuild rendered the saved copies of the chunks, render the loaded
+        // chunks again even if they have not changed since they were last rendered.
+        if (this.mw.chunkManager != null) {
+            this.mw.chunkManager.clearContentHashes();
+        }
+        MwUtil.printBoth(String.format("rebuild task complete, %d regions (%d chunks/s)",
+                this.regionsDone, this.getChunksPerSecond()));
     }
 
 }
@@ -1,20 +1,28 @@
 package mapwriter.tasks;
 
+import mapwriter.region.ChunkSaveQueue;
 import mapwriter.region.MwChunk;
 import mapwriter.region.RegionManager;
 
+// saves every chunk queued in the chunk save queue for the region of the given
+// chunk, including the chunk itself and any chunks queued after this task was created.
 public class SaveChunkTask extends Task {
-    private final MwChunk chunk;
+    private final Long regionKey;
     private final RegionManager regionManager;
 
     public SaveChunkTask(MwChunk chunk, RegionManager regionManager) {
-        this.chunk = chunk;
+        this.regionKey = ChunkSaveQueue.getRegionKey(chunk);
         this.regionManager = regionManager;
     }
 
     @Override
     public void run() {
-        this.chunk.write(this.regionManager.regionFileCache);
+        this.regionManager.chunkSaveQueue.saveRegion(this.regionKey, this.regionManager.regionFileCache);
+    }
+
+    @Override
+    public Long getRegionKey() {
+        return this.regionKey;
     }
 
     @Override
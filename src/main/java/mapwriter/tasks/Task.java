@@ -11,10 +11,23 @@ public abstract class Task implements Runnable {
     // called by processTaskQueue after the thread completes
     public abstract void onComplete();
 
+    // called by processTaskQueue on the main thread while run() has not yet
+    // completed, for tasks that report their progress
+    public void onProgress() {
+    }
+
     // the method that runs in a separate thread
     // must not access future in run()
     public abstract void run();
 
+    // the key of the region (see Region.getKey) this task reads and writes.
+    // the executor runs all tasks with the same key on the same worker thread.
+    // tasks that may touch any region return null and are run with no other
+    // task running at the same time.
+    public Long getRegionKey() {
+        return null;
+    }
+
     public final void setFuture(Future<?> future) {
         this.future = future;
     }
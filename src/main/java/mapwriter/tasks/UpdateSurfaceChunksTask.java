@@ -1,19 +1,52 @@
 package mapwriter.tasks;
 
+import mapwriter.ChunkManager;
 import mapwriter.Mw;
 import mapwriter.map.MapTexture;
 import mapwriter.region.MwChunk;
+import mapwriter.region.Region;
 import mapwriter.region.RegionManager;
 
 public class UpdateSurfaceChunksTask extends Task {
 	MwChunk[] chunkArray;
 	RegionManager regionManager;
 	MapTexture mapTexture;
+	Long regionKey;
+	ChunkManager chunkManager;
+	// number of chunks at the start of chunkArray that have been rendered
+	int renderedCount = 0;
 	
-	public UpdateSurfaceChunksTask(Mw mw, MwChunk[] chunkArray) {
+	// if chunkManager is not null the chunks are copies queued by it, which are
+	// released to the SectionArrayPool once they have been rendered and reported
+	// back to the chunk manager on completion.
+	public UpdateSurfaceChunksTask(Mw mw, MwChunk[] chunkArray, ChunkManager chunkManager) {
 		this.mapTexture = mw.mapTexture;
 		this.regionManager = mw.regionManager;
 		this.chunkArray = chunkArray;
+		this.chunkManager = chunkManager;
+		this.regionKey = getCommonRegionKey(chunkArray);
+	}
+	
+	// returns the region key shared by all chunks in the array, or null if
+	// the chunks lie in more than one region.
+	private static Long getCommonRegionKey(MwChunk[] chunkArray) {
+		Long key = null;
+		for (MwChunk chunk : chunkArray) {
+			if (chunk != null) {
+				Long chunkKey = Region.getKey(chunk.x << 4, chunk.z << 4, 0, chunk.dimension);
+				if (key == null) {
+					key = chunkKey;
+				} else if (!key.equals(chunkKey)) {
+					return null;
+				}
+			}
+		}
+		return key;
+	}
+	
+	@Override
+	public Long getRegionKey() {
+		return this.regionKey;
 	}
 	
 	@Override
@@ -27,11 +60,18 @@ public class UpdateSurfaceChunksTask extends Task {
 						chunk.x << 4, chunk.z << 4,
 						MwChunk.SIZE, MwChunk.SIZE, chunk.dimension
 				);
+				if (this.chunkManager != null) {
+					chunk.release();
+				}
 			}
+			this.renderedCount++;
 		}
 	}
 	
 	@Override
 	public void onComplete() {
+		if (this.chunkManager != null) {
+			this.chunkManager.onChunksRendered(this.chunkArray, this.renderedCount);
+		}
 	}
 }